@@ -0,0 +1,124 @@
+package com.klapeks.sql;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.function.Supplier;
+
+public interface Accessor {
+
+	public Object get(Object object);
+	public void set(Object object, Object value);
+
+	public static interface Factory {
+		public Accessor create(Field field);
+		public <T> Supplier<T> instantiator(Constructor<T> constructor);
+	}
+
+	/**
+	 * Default factory. Field and constructor handles are resolved once per class,
+	 * so mapping a row doesn't go through reflective access checks.
+	 */
+	public static class MethodHandleFactory implements Factory {
+		private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+		private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+		private static final MethodType CONSTRUCTOR = MethodType.methodType(Object.class);
+
+		@Override
+		public Accessor create(Field field) {
+			field.setAccessible(true);
+			MethodHandle getter, setter;
+			try {
+				getter = MethodHandles.lookup().unreflectGetter(field).asType(GETTER);
+				setter = MethodHandles.lookup().unreflectSetter(field).asType(SETTER);
+			} catch (IllegalAccessException e) {
+				return new ReflectFactory().create(field);
+			}
+			return new Accessor() {
+				@Override
+				public Object get(Object object) {
+					try {
+						return (Object) getter.invokeExact(object);
+					} catch (RuntimeException e) {
+						throw e;
+					} catch (Throwable e) {
+						throw new RuntimeException(e);
+					}
+				}
+				@Override
+				public void set(Object object, Object value) {
+					try {
+						setter.invokeExact(object, value);
+					} catch (ClassCastException | NullPointerException e) {
+						throw new IllegalArgumentException("Can't set " + field + " to " + value, e);
+					} catch (RuntimeException e) {
+						throw e;
+					} catch (Throwable e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+
+		@Override
+		public <T> Supplier<T> instantiator(Constructor<T> constructor) {
+			constructor.setAccessible(true);
+			MethodHandle handle;
+			try {
+				handle = MethodHandles.lookup().unreflectConstructor(constructor).asType(CONSTRUCTOR);
+			} catch (IllegalAccessException e) {
+				return new ReflectFactory().instantiator(constructor);
+			}
+			return () -> {
+				try {
+					@SuppressWarnings("unchecked")
+					T object = (T) (Object) handle.invokeExact();
+					return object;
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new RuntimeException(e);
+				}
+			};
+		}
+	}
+
+	public static class ReflectFactory implements Factory {
+		@Override
+		public Accessor create(Field field) {
+			field.setAccessible(true);
+			return new Accessor() {
+				@Override
+				public Object get(Object object) {
+					try {
+						return field.get(object);
+					} catch (IllegalAccessException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				@Override
+				public void set(Object object, Object value) {
+					try {
+						field.set(object, value);
+					} catch (IllegalAccessException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+
+		@Override
+		public <T> Supplier<T> instantiator(Constructor<T> constructor) {
+			constructor.setAccessible(true);
+			return () -> {
+				try {
+					return constructor.newInstance();
+				} catch (ReflectiveOperationException e) {
+					throw new RuntimeException(e);
+				}
+			};
+		}
+	}
+}
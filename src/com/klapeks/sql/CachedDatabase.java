@@ -0,0 +1,479 @@
+package com.klapeks.sql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Caches objects found by primary key ({@link Database#generateWhere(Object)} shaped {@link Where}),
+ * so repeated {@link #selectOne(Class, Where)} of the same row doesn't go to the wrapped database.
+ * <p>
+ * Least recently used objects are evicted after maxSize, and every object expires after expireAfterWrite milliseconds.
+ * Writes through this instance refresh the cache, writes by other {@link Where} drop the whole table from it.
+ * Row read while it is written through this instance is returned but not cached, as it may be the old one.
+ * Copies of objects are cached and returned, so changing a found object doesn't change what others read.
+ * <p>
+ * Inside of a transaction writes only drop rows from the cache, and rows the transaction wrote are read from
+ * the wrapped database until it ends, when they are dropped again. So rows that may be rolled back are never cached.
+ */
+public class CachedDatabase extends DatabaseWrapper {
+
+	static class Cached {
+		final Object object;
+		final long expiresAt;
+		Cached(Object object, long expiresAt) {
+			this.object = object;
+			this.expiresAt = expiresAt;
+		}
+	}
+	/**
+	 * Read of a key in progress, version is changed by every write of the key meanwhile
+	 */
+	static class Loading {
+		int readers;
+		long version;
+	}
+
+	private final int maxSize;
+	private final long expireAfterWrite;
+	private final LinkedHashMap<List<Object>, Cached> cache;
+	/** Guarded by cache */
+	private final Map<List<Object>, Loading> loading = new HashMap<>();
+	/** Keys and tables written by the current thread's transaction */
+	private final ThreadLocal<Set<Object>> changedInTransaction = new ThreadLocal<>();
+	private long hits, misses, evictions;
+
+	/**
+	 * @param maxSize - how many objects are kept
+	 * @param expireAfterWrite - milliseconds an object is kept, 0 or less to keep until evicted
+	 */
+	@SuppressWarnings("serial")
+	public CachedDatabase(Database database, int maxSize, long expireAfterWrite) {
+		super(database);
+		this.maxSize = maxSize;
+		this.expireAfterWrite = expireAfterWrite;
+		this.cache = new LinkedHashMap<List<Object>, Cached>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<Object>, Cached> eldest) {
+				if (size() <= CachedDatabase.this.maxSize) return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	static List<Object> key(EntityModel<?> model, Object[] placeholders) {
+		List<Object> key = new ArrayList<>(placeholders.length + 1);
+		key.add(model.type);
+		key.addAll(Arrays.asList(placeholders));
+		return key;
+	}
+	static boolean isPrimary(EntityModel<?> model, Where where) {
+		return !model.primaryKeys.isEmpty() && where.query.equals(model.primaryQuery);
+	}
+
+	private Object get(List<Object> key) {
+		synchronized (cache) {
+			Cached entry = cache.get(key);
+			if (entry != null && expireAfterWrite > 0 && entry.expiresAt < System.currentTimeMillis()) {
+				cache.remove(key);
+				evictions++;
+				entry = null;
+			}
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			return entry.object;
+		}
+	}
+	private static List<Object> keyOf(Object object) {
+		EntityModel<?> model = model(object);
+		if (model.primaryKeys.isEmpty()) return null;
+		return key(model, model.primaryWhere(object).placeholders);
+	}
+	/**
+	 * Caches copy of written object, inside of a transaction only drops it
+	 */
+	private void put(Object object) {
+		if (object == null) return;
+		List<Object> key = keyOf(object);
+		if (key == null) return;
+		if (isInTransaction()) {
+			remove(key);
+			return;
+		}
+		Object copy = model(object).copy(object);
+		synchronized (cache) {
+			changed(key);
+			cache.put(key, new Cached(copy, System.currentTimeMillis() + expireAfterWrite));
+		}
+	}
+	/**
+	 * Remembers key or table written by the current thread's transaction
+	 */
+	private void record(Object keyOrTable) {
+		if (!isInTransaction()) return;
+		Set<Object> changed = changedInTransaction.get();
+		if (changed == null) changedInTransaction.set(changed = new HashSet<>());
+		changed.add(keyOrTable);
+	}
+	/**
+	 * @return if the current thread's transaction wrote the key, so cached row may be older than what it sees
+	 */
+	private boolean changedInTransaction(List<Object> key) {
+		Set<Object> changed = changedInTransaction.get();
+		return changed != null && (changed.contains(key) || changed.contains(key.get(0)));
+	}
+	/**
+	 * Drops rows written by the transaction that ended, as other threads may have cached them meanwhile
+	 */
+	@SuppressWarnings("unchecked")
+	private void ended() {
+		Set<Object> changed = changedInTransaction.get();
+		if (changed == null) return;
+		changedInTransaction.remove();
+		for (Object keyOrTable : changed) {
+			if (keyOrTable instanceof Class<?>) invalidate((Class<?>) keyOrTable);
+			else remove((List<Object>) keyOrTable);
+		}
+	}
+	/**
+	 * Starts a read of key from the wrapped database
+	 * @return version of the key, to be given to {@link #loaded(List, long, Object)}
+	 */
+	private long loading(List<Object> key) {
+		synchronized (cache) {
+			Loading l = loading.computeIfAbsent(key, k -> new Loading());
+			l.readers++;
+			return l.version;
+		}
+	}
+	/**
+	 * Caches copy of object read from the wrapped database, unless the key was written while it was read
+	 * or it was read inside of a transaction
+	 */
+	private void loaded(List<Object> key, long version, Object object) {
+		Object copy = object == null || isInTransaction() ? null : model(object).copy(object);
+		synchronized (cache) {
+			Loading l = loading.get(key);
+			if (l == null) return;
+			if (--l.readers == 0) loading.remove(key);
+			if (copy == null || l.version != version) return;
+			cache.put(key, new Cached(copy, System.currentTimeMillis() + expireAfterWrite));
+		}
+	}
+	/**
+	 * Drops key from cache, holding the lock of cache
+	 */
+	private void changed(List<Object> key) {
+		cache.remove(key);
+		Loading l = loading.get(key);
+		if (l != null) l.version++;
+	}
+	private void remove(List<Object> key) {
+		record(key);
+		synchronized (cache) {
+			changed(key);
+		}
+	}
+	private void written(Object object, Where where) {
+		EntityModel<?> model = model(object);
+		if (!isPrimary(model, where)) {
+			invalidate(model.type);
+			return;
+		}
+		remove(key(model, where.placeholders));
+		put(object);
+	}
+
+	private void failed(Object object, Where where) {
+		EntityModel<?> model = model(object);
+		if (!isPrimary(model, where)) {
+			invalidate(model.type);
+			return;
+		}
+		remove(key(model, where.placeholders));
+		invalidate(object);
+	}
+
+	public void invalidate(Class<?> table) {
+		record(table);
+		synchronized (cache) {
+			cache.keySet().removeIf(key -> key.get(0) == table);
+			loading.forEach((key, l) -> {
+				if (key.get(0) == table) l.version++;
+			});
+		}
+	}
+	public void invalidate(Object object) {
+		List<Object> key = keyOf(object);
+		if (key != null) remove(key);
+	}
+	public void invalidateAll() {
+		synchronized (cache) {
+			cache.clear();
+			loading.values().forEach(l -> l.version++);
+		}
+	}
+
+	public long getHits() {
+		synchronized (cache) {
+			return hits;
+		}
+	}
+	public long getMisses() {
+		synchronized (cache) {
+			return misses;
+		}
+	}
+	public long getEvictions() {
+		synchronized (cache) {
+			return evictions;
+		}
+	}
+	public double getHitRate() {
+		synchronized (cache) {
+			long total = hits + misses;
+			return total == 0 ? 0 : (double) hits / total;
+		}
+	}
+	public int getSize() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	@Override
+	public void disconnect() {
+		invalidateAll();
+		super.disconnect();
+	}
+	@Override
+	public void updateTable(Class<?> table) {
+		invalidate(table);
+		super.updateTable(table);
+	}
+	@Override
+	public void createOrUpdateTable(Class<?> table) {
+		invalidate(table);
+		super.createOrUpdateTable(table);
+	}
+	@Override
+	public void createOrUpdateTables(Class<?>... tables) {
+		for (Class<?> table : tables) invalidate(table);
+		super.createOrUpdateTables(tables);
+	}
+
+	private void removed(Class<?> table, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		if (!isPrimary(model, where)) {
+			invalidate(table);
+			return;
+		}
+		remove(key(model, where.placeholders));
+	}
+	@Override
+	public void delete(Object object) {
+		if (object==null) return;
+		delete(object.getClass(), generateWhere(object));
+	}
+	@Override
+	public int delete(Class<?> table, Where where) {
+		try {
+			return super.delete(table, where);
+		} finally {
+			removed(table, where);
+		}
+	}
+	@Override
+	public int delete(Class<?> table, Where where, int chunkSize) {
+		try {
+			return super.delete(table, where, chunkSize);
+		} finally {
+			removed(table, where);
+		}
+	}
+	@Override
+	public void deleteAll(Collection<?> objects) {
+		try {
+			super.deleteAll(objects);
+		} finally {
+			for (Object object : objects) invalidate(object);
+		}
+	}
+
+	@Override
+	public int execute(Update update) {
+		try {
+			return super.execute(update);
+		} finally {
+			if (update.where != null && isPrimary(update.model, update.where)) {
+				remove(key(update.model, update.where.placeholders));
+			}
+			else invalidate(update.model.type);
+		}
+	}
+
+	@Override
+	public void inTransaction(Consumer<Database> action) {
+		boolean outer = !isInTransaction();
+		try {
+			super.inTransaction(action);
+		} finally {
+			if (outer) ended();
+		}
+	}
+	@Override
+	public void commit() {
+		try {
+			super.commit();
+		} finally {
+			ended();
+		}
+	}
+	@Override
+	public void rollback() {
+		try {
+			super.rollback();
+		} finally {
+			ended();
+		}
+	}
+
+	@Override
+	public void insert(Object object) {
+		try {
+			super.insert(object);
+		} catch (RuntimeException e) {
+			invalidate(object);
+			throw e;
+		}
+		put(object);
+	}
+	@Override
+	public void update(Object object, Where where) {
+		try {
+			super.update(object, where);
+		} catch (RuntimeException e) {
+			failed(object, where);
+			throw e;
+		}
+		written(object, where);
+	}
+	@Override
+	public void update(Object object) {
+		update(object, generateWhere(object));
+	}
+	@Override
+	public void updateOrInsert(Object object, Where where) {
+		try {
+			super.updateOrInsert(object, where);
+		} catch (RuntimeException e) {
+			failed(object, where);
+			throw e;
+		}
+		written(object, where);
+	}
+	@Override
+	public void updateOrInsert(Object object) {
+		if (object==null) return;
+		updateOrInsert(object, generateWhere(object));
+	}
+
+	@Override
+	public void insertAll(Collection<?> objects) {
+		try {
+			super.insertAll(objects);
+		} catch (RuntimeException e) {
+			for (Object object : objects) invalidate(object);
+			throw e;
+		}
+		for (Object object : objects) put(object);
+	}
+	@Override
+	public void updateAll(Collection<?> objects) {
+		try {
+			super.updateAll(objects);
+		} catch (RuntimeException e) {
+			for (Object object : objects) invalidate(object);
+			throw e;
+		}
+		for (Object object : objects) put(object);
+	}
+	@Override
+	public void updateOrInsertAll(Collection<?> objects) {
+		try {
+			super.updateOrInsertAll(objects);
+		} catch (RuntimeException e) {
+			for (Object object : objects) invalidate(object);
+			throw e;
+		}
+		for (Object object : objects) put(object);
+	}
+
+	@Override
+	public <T> T selectOne(Class<T> table, Where where) {
+		EntityModel<T> model = EntityModel.of(table);
+		if (!isPrimary(model, where)) return super.selectOne(table, where);
+		List<Object> key = key(model, where.placeholders);
+		Object object = changedInTransaction(key) ? null : get(key);
+		if (object != null) return model.copy(object);
+		long version = loading(key);
+		T found = null;
+		try {
+			found = super.selectOne(table, where);
+		} finally {
+			loaded(key, version, found);
+		}
+		return found;
+	}
+	/**
+	 * Returns cached objects and asks wrapped database only for the rest
+	 */
+	@Override
+	public <T> Map<Object, T> selectByKeys(Class<T> table, Collection<?> keys) {
+		EntityModel<T> model = EntityModel.of(table);
+		Map<Object, T> found = new LinkedHashMap<>();
+		List<Object> missing = new ArrayList<>();
+		Map<List<Object>, Long> versions = new LinkedHashMap<>();
+		for (Object key : keys) {
+			Object[] values = model.keyValues(key);
+			List<Object> cacheKey = key(model, values);
+			Object object = changedInTransaction(cacheKey) ? null : get(cacheKey);
+			if (object != null) found.put(model.key(values), model.copy(object));
+			else if (!versions.containsKey(cacheKey)) {
+				missing.add(key);
+				versions.put(cacheKey, loading(cacheKey));
+			}
+		}
+		if (missing.isEmpty()) return found;
+		Map<Object, T> loaded = null;
+		try {
+			loaded = super.selectByKeys(table, missing);
+		} finally {
+			Map<List<Object>, Object> byKey = new HashMap<>();
+			if (loaded != null) for (T object : loaded.values()) byKey.put(keyOf(object), object);
+			versions.forEach((cacheKey, version) -> loaded(cacheKey, version, byKey.get(cacheKey)));
+		}
+		found.putAll(loaded);
+		return found;
+	}
+	@Override
+	public boolean hasOne(Class<?> table, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		if (isPrimary(model, where)) {
+			List<Object> key = key(model, where.placeholders);
+			if (!changedInTransaction(key) && get(key) != null) return true;
+		}
+		return super.hasOne(table, where);
+	}
+}
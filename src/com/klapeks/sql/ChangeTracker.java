@@ -0,0 +1,115 @@
+package com.klapeks.sql;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Remembers column values (as they are stored in database) of objects last read or written,
+ * so only changed columns need to be written next time.
+ * Objects are held weakly and compared by identity.
+ */
+class ChangeTracker {
+
+	static class IdentityKey extends WeakReference<Object> {
+		final int hash;
+		IdentityKey(Object object, ReferenceQueue<Object> queue) {
+			super(object, queue);
+			this.hash = System.identityHashCode(object);
+		}
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) return true;
+			if (!(obj instanceof IdentityKey)) return false;
+			Object object = get();
+			return object != null && object == ((IdentityKey) obj).get();
+		}
+	}
+
+	private final Map<IdentityKey, Object[]> snapshots = new HashMap<>();
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+	/** Value of a column that wasn't selected, it is never treated as changed */
+	static final Object NOT_LOADED = new Object();
+
+	static Object[] values(EntityModel<?> model, Object object) {
+		return values(model, model.columns, object);
+	}
+	static Object[] values(EntityModel<?> model, List<EntityColumn> columns, Object object) {
+		Object[] values = new Object[model.columns.size()];
+		for (int i = 0; i < values.length; i++) {
+			EntityColumn column = model.columns.get(i);
+			if (columns != model.columns && !columns.contains(column)) values[i] = NOT_LOADED;
+			else values[i] = column.toDB(column.get(object));
+		}
+		return values;
+	}
+	static boolean isPartial(Object[] snapshot) {
+		for (Object value : snapshot) {
+			if (value == NOT_LOADED) return true;
+		}
+		return false;
+	}
+	/**
+	 * @return snapshot after writing the changed columns
+	 */
+	static Object[] merge(Object[] snapshot, Object[] values, boolean[] changed) {
+		if (snapshot == null || changed == null) return values;
+		Object[] merged = snapshot.clone();
+		for (int i = 0; i < merged.length; i++) {
+			if (changed[i]) merged[i] = values[i];
+		}
+		return merged;
+	}
+
+	/**
+	 * @return which columns differ from the snapshot, or null if object has no snapshot
+	 */
+	static boolean[] changed(Object[] snapshot, Object[] values) {
+		if (snapshot == null) return null;
+		boolean[] changed = new boolean[values.length];
+		for (int i = 0; i < values.length; i++) {
+			changed[i] = snapshot[i] != NOT_LOADED && !Objects.equals(snapshot[i], values[i]);
+		}
+		return changed;
+	}
+
+	synchronized Object[] get(Object object) {
+		expunge();
+		return snapshots.get(new IdentityKey(object, null));
+	}
+	synchronized void put(Object object, Object[] values) {
+		expunge();
+		snapshots.put(new IdentityKey(object, queue), values);
+	}
+	synchronized void remove(Object object) {
+		snapshots.remove(new IdentityKey(object, null));
+	}
+	/**
+	 * Drops snapshots of every object of the table, after its rows were changed past them
+	 */
+	synchronized void removeAll(Class<?> table) {
+		expunge();
+		snapshots.keySet().removeIf(key -> {
+			Object object = key.get();
+			return object == null || object.getClass() == table;
+		});
+	}
+	synchronized void clear() {
+		snapshots.clear();
+		while (queue.poll() != null);
+	}
+
+	private void expunge() {
+		Reference<?> ref;
+		while ((ref = queue.poll()) != null) snapshots.remove(ref);
+	}
+}
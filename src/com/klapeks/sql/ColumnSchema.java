@@ -3,13 +3,8 @@ package com.klapeks.sql;
 import java.lang.reflect.Field;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.List;
 
-import com.klapeks.sql.anno.Column;
 import com.klapeks.sql.anno.Limit;
-import com.klapeks.sql.anno.Nullable;
-import com.klapeks.sql.anno.Primary;
-import com.klapeks.sql.anno.Unique;
 
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
@@ -26,22 +21,18 @@ public class ColumnSchema {
 	boolean isUnique;
 	
 	public ColumnSchema() {}
+	/**
+	 * Column of a @{@link com.klapeks.sql.anno.Column} field, as {@link EntityColumn} reads it
+	 */
 	public ColumnSchema(Field field) {
-		name = field.getAnnotation(Column.class).value();
-		isPrimary = field.getAnnotation(Primary.class)!=null;
-		isUnique = field.getAnnotation(Unique.class)!=null;
-		isNullable = field.getAnnotation(Nullable.class)!=null;
-		
-		DataType<?> datatype = DataConverter.getConverter(field.getType());
-		if (datatype==null) {
-			if (field.getType().isAssignableFrom(List.class)) {
-				datatype = DataConverter.getConverter(List.class);
-			}
-			throw new RuntimeException("Can't get converter for " + field.getType());
-		}
-		int limit = getLimit(field, datatype);
-		type = datatype.getSqlType(limit);
-		if (limit > 0) type += "(" + limit + ")";
+		this(new EntityColumn(field, null));
+	}
+	public ColumnSchema(EntityColumn column) {
+		name = column.name;
+		isPrimary = column.isPrimary;
+		isUnique = column.isUnique;
+		isNullable = column.isNullable;
+		type = column.getSqlType();
 	}
 	public ColumnSchema(ResultSet set) {
 		try {
@@ -0,0 +1,182 @@
+package com.klapeks.sql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of JDBC connections used by {@link MatSQL}.
+ * Configured by "pool.*" connection properties, which are not passed to the driver.
+ * With default settings the pool holds exactly one connection.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+	public static final String MIN_SIZE = "pool.minSize";
+	public static final String MAX_SIZE = "pool.maxSize";
+	/** Milliseconds an idle connection above minSize is kept open */
+	public static final String IDLE_TIMEOUT = "pool.idleTimeout";
+	/** Milliseconds to wait for a free connection before failing */
+	public static final String BORROW_TIMEOUT = "pool.borrowTimeout";
+	/** Seconds to wait for {@link Connection#isValid(int)} */
+	public static final String VALIDATION_TIMEOUT = "pool.validationTimeout";
+	public static final String STATEMENT_CACHE_SIZE = "pool.statementCacheSize";
+
+	/** Connections used more recently than this are not validated again on borrow */
+	private static final long VALIDATION_INTERVAL = 500;
+
+	final String url;
+	final Properties properties = new Properties();
+	final int minSize;
+	final int maxSize;
+	final long idleTimeout;
+	final long borrowTimeout;
+	final int validationTimeout;
+	final int statementCacheSize;
+
+	private final BlockingDeque<StatementCache> idle = new LinkedBlockingDeque<>();
+	private final AtomicInteger total = new AtomicInteger();
+	private final Semaphore permits;
+	private final ScheduledExecutorService evictor;
+	private volatile boolean closed = false;
+
+	public ConnectionPool(String url, Properties properties, int defaultStatementCacheSize) {
+		this.url = url;
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith("pool.")) continue;
+			this.properties.setProperty(key, properties.getProperty(key));
+		}
+		this.maxSize = Math.max(1, getInt(properties, MAX_SIZE, 1));
+		this.minSize = Math.max(0, Math.min(maxSize, getInt(properties, MIN_SIZE, 1)));
+		this.idleTimeout = getInt(properties, IDLE_TIMEOUT, 10 * 60 * 1000);
+		this.borrowTimeout = getInt(properties, BORROW_TIMEOUT, 30 * 1000);
+		this.validationTimeout = getInt(properties, VALIDATION_TIMEOUT, 2);
+		this.statementCacheSize = getInt(properties, STATEMENT_CACHE_SIZE, defaultStatementCacheSize);
+		this.permits = new Semaphore(maxSize, true);
+
+		try {
+			while (total.get() < minSize) idle.offerLast(open());
+		} catch (SQLException e) {
+			close();
+			throw new RuntimeSQLException(e);
+		}
+		if (maxSize > minSize && idleTimeout > 0) {
+			evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "KlapeksSQL pool evictor");
+				thread.setDaemon(true);
+				return thread;
+			});
+			long period = Math.max(1000, idleTimeout / 2);
+			evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+		} else evictor = null;
+	}
+
+	private static int getInt(Properties properties, String key, int def) {
+		String value = properties.getProperty(key);
+		if (value == null) return def;
+		return Integer.parseInt(value.trim());
+	}
+
+	private StatementCache open() throws SQLException {
+		Connection connection = DriverManager.getConnection(url, properties);
+		total.incrementAndGet();
+		StatementCache statements = new StatementCache(connection, statementCacheSize);
+		statements.lastUsed = System.currentTimeMillis();
+		return statements;
+	}
+
+	private void destroy(StatementCache statements) {
+		total.decrementAndGet();
+		statements.close();
+		StatementCache.closeQuietly(statements.connection);
+	}
+
+	public StatementCache borrow() {
+		if (closed) throw new RuntimeException("Database is not connected");
+		try {
+			if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+				throw new RuntimeSQLException(new SQLTransientConnectionException(
+						"No free connection in " + borrowTimeout + "ms (pool size " + maxSize + ")"));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		try {
+			StatementCache statements;
+			while ((statements = idle.pollFirst()) != null) {
+				if (isValid(statements)) return statements;
+				destroy(statements);
+			}
+			return open();
+		} catch (SQLException e) {
+			permits.release();
+			throw new RuntimeSQLException(e);
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	public void release(StatementCache statements, boolean broken) {
+		try {
+			if (broken || closed || statements.connection.isClosed()) {
+				destroy(statements);
+				return;
+			}
+			statements.lastUsed = System.currentTimeMillis();
+			idle.offerFirst(statements);
+		} catch (SQLException e) {
+			destroy(statements);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private boolean isValid(StatementCache statements) {
+		if (System.currentTimeMillis() - statements.lastUsed < VALIDATION_INTERVAL) return true;
+		try {
+			return statements.connection.isValid(validationTimeout);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		int checks = idle.size();
+		for (int i = 0; i < checks && total.get() > minSize; i++) {
+			StatementCache statements = idle.pollLast();
+			if (statements == null) break;
+			if (now - statements.lastUsed > idleTimeout) {
+				destroy(statements);
+				continue;
+			}
+			idle.offerLast(statements);
+			break;
+		}
+	}
+
+	public int getTotalConnections() {
+		return total.get();
+	}
+	public int getIdleConnections() {
+		return idle.size();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if (evictor != null) evictor.shutdownNow();
+		StatementCache statements;
+		while ((statements = idle.pollFirst()) != null) destroy(statements);
+	}
+}
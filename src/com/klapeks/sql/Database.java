@@ -1,15 +1,25 @@
 package com.klapeks.sql;
 
-import java.lang.reflect.Field;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
-import com.klapeks.sql.anno.Column;
-import com.klapeks.sql.anno.Primary;
 import com.klapeks.sql.anno.Table;
 
 public abstract class Database {
+	/** Changes to undo on rollback, for databases that keep rows themselves */
+	final UndoLog undo = new UndoLog();
+
 	static Object convertToDB(Object o) {
 		return DataConverter.convertToDB(o);
 	}
@@ -26,6 +36,7 @@ public abstract class Database {
 		properties.setProperty("password", password);
 		properties.setProperty("characterEncoding", "utf8");
 		properties.setProperty("autoReconnect", "true");
+		properties.setProperty("rewriteBatchedStatements", "true");
 		connect(path, properties);
 	}
 	public abstract void disconnect();
@@ -44,6 +55,9 @@ public abstract class Database {
 		if (!checkIfTableExists(table)) createTable(table);
 		else updateTable(table);
 	}
+	public void createOrUpdateTables(Class<?>... tables) {
+		for (Class<?> table : tables) createOrUpdateTable(table);
+	}
 
 	public abstract void insert(Object object);
 	public abstract void update(Object object, Where where);
@@ -66,45 +80,438 @@ public abstract class Database {
 		updateOrInsert(object, generateWhere(object));
 	}
 
+	public void insertAll(Collection<?> objects) {
+		for (Object object : objects) insert(object);
+	}
+	public void updateAll(Collection<?> objects) {
+		for (Object object : objects) update(object);
+	}
+	public void updateOrInsertAll(Collection<?> objects) {
+		for (Object object : objects) updateOrInsert(object);
+	}
+
+	public void delete(Object object) {
+		if (object==null) return;
+		delete(object.getClass(), generateWhere(object));
+	}
+	/**
+	 * By default deletes rows found by where one by one with {@link #deleteRow(Object)}
+	 * @return how many rows were deleted
+	 */
+	public int delete(Class<?> table, Where where) {
+		List<?> rows = select(table, where);
+		if (rows == null) return 0;
+		int deleted = 0;
+		for (Object row : rows) {
+			if (deleteRow(row)) deleted++;
+		}
+		return deleted;
+	}
+	/**
+	 * Deletes one row found by {@link #delete(Class, Where)}, not needed by databases that override it
+	 * @return if the row was deleted
+	 */
+	protected boolean deleteRow(Object row) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " has to override deleteRow or delete(Class, Where)");
+	}
+	/**
+	 * Deletes by parts of chunkSize rows, so big deletes don't lock the table for long.
+	 * Implementations without locks delete all at once.
+	 * @return how many rows were deleted
+	 */
+	public int delete(Class<?> table, Where where, int chunkSize) {
+		return delete(table, where);
+	}
+	public void deleteAll(Collection<?> objects) {
+		for (Object object : objects) delete(object);
+	}
+
+	/**
+	 * Aggregates are computed over rows matching where, or all rows if it is null.
+	 * This implementation selects the rows and computes them in memory, SQL databases run them as queries.
+	 */
+	public long count(Class<?> table, Where where) {
+		List<?> rows = select(table, where == null ? new Where("") : where);
+		return rows == null ? 0 : rows.size();
+	}
+	/**
+	 * @return sum as Long for integer columns, Double otherwise, or null if there are no rows
+	 */
+	public Number sum(Class<?> table, String column, Where where) {
+		Number sum = null;
+		for (Object value : storedValues(table, column, where)) {
+			if (value == null) continue;
+			if (!(value instanceof Number)) throw new IllegalArgumentException("Column " + column + " is not numeric");
+			sum = add(sum, (Number) value);
+		}
+		return sum;
+	}
+	/**
+	 * @return smallest value of column, or null if there are no rows
+	 */
+	public <V> V min(Class<?> table, String column, Where where) {
+		return extreme(table, column, where, -1);
+	}
+	/**
+	 * @return biggest value of column, or null if there are no rows
+	 */
+	public <V> V max(Class<?> table, String column, Where where) {
+		return extreme(table, column, where, 1);
+	}
+	/**
+	 * @return how many rows have each value of column
+	 */
+	public Map<Object, Long> countBy(Class<?> table, String column, Where where) {
+		EntityColumn c = column(table, column);
+		Map<Object, Long> counts = new LinkedHashMap<>();
+		for (Object value : storedValues(table, column, where)) {
+			counts.merge(c.fromDB(value), 1L, Long::sum);
+		}
+		return counts;
+	}
+	private static EntityColumn column(Class<?> table, String column) {
+		return EntityModel.of(table).projection(column).get(0);
+	}
+	private List<Object> storedValues(Class<?> table, String column, Where where) {
+		EntityColumn c = column(table, column);
+		List<?> rows = select(table, where == null ? new Where("") : where, column);
+		List<Object> values = new ArrayList<>();
+		if (rows == null) return values;
+		for (Object row : rows) values.add(c.toDB(c.get(row)));
+		return values;
+	}
+	@SuppressWarnings("unchecked")
+	private <V> V extreme(Class<?> table, String column, Where where, int sign) {
+		Object extreme = null;
+		for (Object value : storedValues(table, column, where)) {
+			if (value == null) continue;
+			if (extreme == null || ValueCodec.compare(value, extreme) * sign > 0) extreme = value;
+		}
+		return (V) column(table, column).fromDB(extreme);
+	}
+	static Number add(Number sum, Number value) {
+		boolean integral = value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+		if (sum == null) return integral ? (Number) value.longValue() : (Number) value.doubleValue();
+		if (integral && sum instanceof Long) return sum.longValue() + value.longValue();
+		return sum.doubleValue() + value.doubleValue();
+	}
+
+	public <T> PageRequest<T> page(Class<T> table) {
+		return new PageRequest<>(this, table);
+	}
+	/**
+	 * Selects every matching row and pages them in memory, databases that can seek should override it
+	 */
+	public <T> Page<T> fetch(PageRequest<T> request) {
+		List<T> rows = select(request.model.type, request.where == null ? new Where("") : request.where);
+		if (rows == null) return new Page<>(new ArrayList<>(), null);
+		Object[] after = request.cursorValues();
+		List<Map.Entry<Object[], T>> sorted = new ArrayList<>(rows.size());
+		for (T row : rows) {
+			Object[] values = request.values(row);
+			if (after == null || request.compare(values, after) > 0) sorted.add(new AbstractMap.SimpleEntry<>(values, row));
+		}
+		sorted.sort((a, b) -> request.compare(a.getKey(), b.getKey()));
+		List<T> page = new ArrayList<>(Math.min(sorted.size(), request.size + 1));
+		for (int i = 0; i < sorted.size() && i <= request.size; i++) page.add(sorted.get(i).getValue());
+		return request.page(page);
+	}
+
+	public Update modify(Class<?> table) {
+		return new Update(this, table);
+	}
+	/**
+	 * @return if {@link Update#expression(String, String, Object...)} can be run, only SQL databases can
+	 */
+	protected boolean supportsExpressions() {
+		return false;
+	}
+	/**
+	 * Runs the {@link Update}, usually called by {@link Update#execute()}.
+	 * By default reads matching rows, changes them and writes each one back by its primary key,
+	 * or by all its columns if the table has none.
+	 * @return how many rows were changed
+	 */
+	public int execute(Update update) {
+		List<?> rows = select(update.model.type, update.where);
+		if (rows == null) return 0;
+		int changed = 0;
+		for (Object row : rows) {
+			Where own = rowWhere(update.model, row);
+			if (!update.applyTo(row)) continue;
+			update(row, own);
+			changed++;
+		}
+		return changed;
+	}
+	private static Where rowWhere(EntityModel<?> model, Object row) {
+		if (!model.primaryKeys.isEmpty()) return model.primaryWhere(row);
+		StringBuilder query = new StringBuilder();
+		Object[] placeholders = new Object[model.columns.size()];
+		for (int i = 0; i < placeholders.length; i++) {
+			EntityColumn column = model.columns.get(i);
+			if (i > 0) query.append(" AND ");
+			query.append('`').append(column.name).append("` = ?");
+			placeholders[i] = column.get(row);
+		}
+		return new Where(query.toString(), placeholders);
+	}
+	public int increment(Class<?> table, String column, Number delta, Where where) {
+		return modify(table).increment(column, delta).where(where).execute();
+	}
+	/**
+	 * Sets column to value only where it still equals expected
+	 * @return how many rows were changed
+	 */
+	public int compareAndSet(Class<?> table, String column, Object expected, Object value, Where where) {
+		return modify(table).expect(column, expected).set(column, value).where(where).execute();
+	}
+
+	/**
+	 * Runs action so that its changes are saved all at once, or not at all if it throws.
+	 * Inside of another transaction action joins it, and only changes of action are undone if it throws
+	 * when the transaction is the default one.
+	 */
+	public void inTransaction(Consumer<Database> action) {
+		if (undo.isActive()) {
+			undo.nested(this, action);
+			return;
+		}
+		if (isInTransaction()) {
+			action.accept(this);
+			return;
+		}
+		begin();
+		try {
+			action.accept(this);
+		} catch (RuntimeException | Error e) {
+			try {
+				rollback();
+			} catch (RuntimeException ex) {
+				e.addSuppressed(ex);
+			}
+			throw e;
+		}
+		commit();
+	}
+	/**
+	 * Starts a transaction of the current thread.
+	 * By default changes are applied right away, and rollback undoes the ones recorded by {@link #recordUndo(Runnable)}
+	 * in reverse order. Such transactions aren't isolated, other threads see changes before commit.
+	 */
+	public void begin() {
+		undo.begin();
+	}
+	public void commit() {
+		undo.commit();
+	}
+	public void rollback() {
+		undo.rollback();
+	}
+	public boolean isInTransaction() {
+		return undo.isActive();
+	}
+	/**
+	 * Remembers how to undo a change on rollback of the default transaction, if the current thread is in one.
+	 * Undo action must not record itself again.
+	 */
+	protected final void recordUndo(Runnable undo) {
+		this.undo.record(undo);
+	}
+
 	public abstract <T> List<T> select(Class<T> table, Where where);
+	/**
+	 * Like {@link #select(Class, Where)}, but only given columns are read, other fields are left default.
+	 * Implementations that can't read part of a row return whole objects.
+	 */
+	public <T> List<T> select(Class<T> table, Where where, String... columns) {
+		return select(table, where);
+	}
 	public <T> T selectOne(Class<T> table, Where where) {
 		where.limit = 1;
 		List<T> list = select(table, where);
 		if (list == null || list.isEmpty()) return null;
 		return list.get(0);
 	}
+	/**
+	 * Finds rows by primary key. Key is the value itself for a single column primary key,
+	 * List (or array) of values in primary key order for a composite one.
+	 * @return found objects by key (composite keys as List), keys without a row are absent
+	 */
+	public <T> Map<Object, T> selectByKeys(Class<T> table, Collection<?> keys) {
+		EntityModel<T> model = EntityModel.of(table);
+		Map<Object, T> found = new LinkedHashMap<>();
+		for (Object key : keys) {
+			Object[] values = model.keyValues(key);
+			T object = selectOne(table, new Where(model.primaryQuery, values));
+			if (object != null) found.put(model.key(values), object);
+		}
+		return found;
+	}
 	public abstract boolean hasOne(Class<?> table, Where where);
+	/**
+	 * Passes every found object to action. Unlike {@link #select(Class, Where)}
+	 * implementations may read them one by one instead of loading the whole list.
+	 */
+	public <T> void forEach(Class<T> table, Where where, Consumer<? super T> action) {
+		List<T> list = select(table, where);
+		if (list != null) list.forEach(action);
+	}
 	
 	static Table validTable(Object object) {
+		return model(object).table;
+	}
+	static EntityModel<?> model(Object object) {
 		Class<?> clazz = object.getClass();
 		if (clazz == Class.class) clazz = (Class<?>) object;
-		Table table = clazz.getAnnotation(Table.class);
-		if (table==null) throw new RuntimeException(clazz + " is not Table");
-		return table;
+		return EntityModel.of(clazz);
+	}
+	static Map<EntityModel<?>, List<Object>> groupByTable(Collection<?> objects) {
+		Map<EntityModel<?>, List<Object>> tables = new LinkedHashMap<>();
+		for (Object object : objects) {
+			if (object==null) continue;
+			tables.computeIfAbsent(model(object), m -> new ArrayList<>()).add(object);
+		}
+		return tables;
 	}
 	public static Where generateWhere(Object object) {
-		List<Object> placeholders = new ArrayList<>();
-		StringBuilder query = new StringBuilder();
-		int index = 0;
-		for (Field field : object.getClass().getDeclaredFields()) {
-			Column column = field.getAnnotation(Column.class);
-			if (column==null) continue;
-			if (field.getAnnotation(Primary.class)==null) continue;
-			if (index++>0) query.append(" AND ");
+		return model(object).primaryWhere(object);
+	}
+
+	public Where where(String query, Object... placeholders) {
+		return new Where(query, placeholders);
+	}
+
+	private static volatile Executor defaultAsyncExecutor;
+	private Executor asyncExecutor;
+	private Executor callbackExecutor;
+
+	/**
+	 * Executor that runs the *Async methods.
+	 * By default virtual threads when running on Java 21+, otherwise a cached pool of daemon threads.
+	 */
+	public void setAsyncExecutor(Executor asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+	}
+	public Executor getAsyncExecutor() {
+		if (asyncExecutor != null) return asyncExecutor;
+		return defaultAsyncExecutor();
+	}
+	/**
+	 * Executor that completes futures of *Async methods, e.g. the server main thread.
+	 * If null, futures are completed on the thread that did the query.
+	 */
+	public void setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+	}
+	public Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
+
+	private static Executor defaultAsyncExecutor() {
+		Executor executor = defaultAsyncExecutor;
+		if (executor != null) return executor;
+		synchronized (Database.class) {
+			if (defaultAsyncExecutor != null) return defaultAsyncExecutor;
 			try {
-				field.setAccessible(true);
-				placeholders.add(field.get(object));
-				query.append("`");
-				query.append(column.value());
-				query.append("` = ?");
-			} catch (Throwable e) {
-				e.printStackTrace();
+				executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				executor = Executors.newCachedThreadPool(r -> {
+					Thread thread = new Thread(r, "KlapeksSQL async");
+					thread.setDaemon(true);
+					return thread;
+				});
 			}
+			return defaultAsyncExecutor = executor;
 		}
-		return new Where(query.toString(), placeholders);
 	}
 
-	public Where where(String query, Object... placeholders) {
-		return new Where(query, placeholders);
+	protected <R> CompletableFuture<R> async(Supplier<R> task) {
+		CompletableFuture<R> future = CompletableFuture.supplyAsync(task, getAsyncExecutor());
+		Executor callback = callbackExecutor;
+		if (callback == null) return future;
+		return future.whenCompleteAsync((result, error) -> {}, callback);
+	}
+	protected CompletableFuture<Void> async(Runnable task) {
+		return async(() -> {
+			task.run();
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> insertAsync(Object object) {
+		return async(() -> insert(object));
+	}
+	public CompletableFuture<Void> updateAsync(Object object, Where where) {
+		return async(() -> update(object, where));
+	}
+	public CompletableFuture<Void> updateAsync(Object object) {
+		return async(() -> update(object));
+	}
+	public CompletableFuture<Void> updateOrInsertAsync(Object object, Where where) {
+		return async(() -> updateOrInsert(object, where));
+	}
+	public CompletableFuture<Void> updateOrInsertAsync(Object object) {
+		return async(() -> updateOrInsert(object));
+	}
+	public CompletableFuture<Void> insertAllAsync(Collection<?> objects) {
+		return async(() -> insertAll(objects));
+	}
+	public CompletableFuture<Void> updateAllAsync(Collection<?> objects) {
+		return async(() -> updateAll(objects));
+	}
+	public CompletableFuture<Void> updateOrInsertAllAsync(Collection<?> objects) {
+		return async(() -> updateOrInsertAll(objects));
+	}
+	/**
+	 * Runs {@link #inTransaction(Consumer)} on async executor, so writes of action are committed together
+	 */
+	public CompletableFuture<Void> inTransactionAsync(Consumer<Database> action) {
+		return async(() -> inTransaction(action));
+	}
+	public CompletableFuture<Void> deleteAsync(Object object) {
+		return async(() -> delete(object));
+	}
+	public CompletableFuture<Integer> deleteAsync(Class<?> table, Where where) {
+		return async(() -> delete(table, where));
+	}
+	public CompletableFuture<Integer> deleteAsync(Class<?> table, Where where, int chunkSize) {
+		return async(() -> delete(table, where, chunkSize));
+	}
+	public CompletableFuture<Void> deleteAllAsync(Collection<?> objects) {
+		return async(() -> deleteAll(objects));
+	}
+	public <T> CompletableFuture<List<T>> selectAsync(Class<T> table, Where where) {
+		return async(() -> select(table, where));
+	}
+	public <T> CompletableFuture<T> selectOneAsync(Class<T> table, Where where) {
+		return async(() -> selectOne(table, where));
+	}
+	public <T> CompletableFuture<Map<Object, T>> selectByKeysAsync(Class<T> table, Collection<?> keys) {
+		return async(() -> selectByKeys(table, keys));
+	}
+	public <T> CompletableFuture<Page<T>> fetchAsync(PageRequest<T> request) {
+		return async(() -> fetch(request));
+	}
+	public CompletableFuture<Long> countAsync(Class<?> table, Where where) {
+		return async(() -> count(table, where));
+	}
+	public CompletableFuture<Number> sumAsync(Class<?> table, String column, Where where) {
+		return async(() -> sum(table, column, where));
+	}
+	public <V> CompletableFuture<V> minAsync(Class<?> table, String column, Where where) {
+		return async(() -> this.<V>min(table, column, where));
+	}
+	public <V> CompletableFuture<V> maxAsync(Class<?> table, String column, Where where) {
+		return async(() -> this.<V>max(table, column, where));
+	}
+	public CompletableFuture<Map<Object, Long>> countByAsync(Class<?> table, String column, Where where) {
+		return async(() -> countBy(table, column, where));
+	}
+	public <T> CompletableFuture<Void> forEachAsync(Class<T> table, Where where, Consumer<? super T> action) {
+		return async(() -> forEach(table, where, action));
+	}
+	public CompletableFuture<Boolean> hasOneAsync(Class<?> table, Where where) {
+		return async(() -> hasOne(table, where));
 	}
 }
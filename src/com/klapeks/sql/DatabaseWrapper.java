@@ -0,0 +1,185 @@
+package com.klapeks.sql;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+/**
+ * Base for layers that sit in front of another {@link Database}.
+ * Passes every call to the wrapped database.
+ */
+public abstract class DatabaseWrapper extends Database {
+
+	protected final Database database;
+
+	public DatabaseWrapper(Database database) {
+		if (database == null) throw new NullPointerException("database");
+		this.database = database;
+	}
+
+	public Database getDatabase() {
+		return database;
+	}
+
+	@Override
+	public void connect(String path, Properties properties) {
+		database.connect(path, properties);
+	}
+	@Override
+	public void disconnect() {
+		database.disconnect();
+	}
+
+	@Override
+	public boolean checkIfTableExists(Class<?> table) {
+		return database.checkIfTableExists(table);
+	}
+	@Override
+	public void createTable(Class<?> table) {
+		database.createTable(table);
+	}
+	@Override
+	public void updateTable(Class<?> table) {
+		database.updateTable(table);
+	}
+	@Override
+	public void createOrUpdateTable(Class<?> table) {
+		database.createOrUpdateTable(table);
+	}
+	@Override
+	public void createOrUpdateTables(Class<?>... tables) {
+		database.createOrUpdateTables(tables);
+	}
+
+	@Override
+	public void insert(Object object) {
+		database.insert(object);
+	}
+	@Override
+	public void update(Object object, Where where) {
+		database.update(object, where);
+	}
+	@Override
+	public void update(Object object) {
+		database.update(object);
+	}
+	@Override
+	public void updateOrInsert(Object object, Where where) {
+		database.updateOrInsert(object, where);
+	}
+	@Override
+	public void updateOrInsert(Object object) {
+		database.updateOrInsert(object);
+	}
+
+	@Override
+	public void insertAll(Collection<?> objects) {
+		database.insertAll(objects);
+	}
+	@Override
+	public void updateAll(Collection<?> objects) {
+		database.updateAll(objects);
+	}
+	@Override
+	public void updateOrInsertAll(Collection<?> objects) {
+		database.updateOrInsertAll(objects);
+	}
+
+	@Override
+	public void delete(Object object) {
+		database.delete(object);
+	}
+	@Override
+	public int delete(Class<?> table, Where where) {
+		return database.delete(table, where);
+	}
+	@Override
+	public int delete(Class<?> table, Where where, int chunkSize) {
+		return database.delete(table, where, chunkSize);
+	}
+	@Override
+	public void deleteAll(Collection<?> objects) {
+		database.deleteAll(objects);
+	}
+
+	@Override
+	public int execute(Update update) {
+		return database.execute(update);
+	}
+	@Override
+	protected boolean supportsExpressions() {
+		return database.supportsExpressions();
+	}
+
+	@Override
+	public void inTransaction(Consumer<Database> action) {
+		database.inTransaction(db -> action.accept(this));
+	}
+	@Override
+	public void begin() {
+		database.begin();
+	}
+	@Override
+	public void commit() {
+		database.commit();
+	}
+	@Override
+	public void rollback() {
+		database.rollback();
+	}
+	@Override
+	public boolean isInTransaction() {
+		return database.isInTransaction();
+	}
+
+	@Override
+	public <T> List<T> select(Class<T> table, Where where) {
+		return database.select(table, where);
+	}
+	@Override
+	public <T> List<T> select(Class<T> table, Where where, String... columns) {
+		return database.select(table, where, columns);
+	}
+	@Override
+	public <T> T selectOne(Class<T> table, Where where) {
+		return database.selectOne(table, where);
+	}
+	@Override
+	public <T> Map<Object, T> selectByKeys(Class<T> table, Collection<?> keys) {
+		return database.selectByKeys(table, keys);
+	}
+	@Override
+	public long count(Class<?> table, Where where) {
+		return database.count(table, where);
+	}
+	@Override
+	public Number sum(Class<?> table, String column, Where where) {
+		return database.sum(table, column, where);
+	}
+	@Override
+	public <V> V min(Class<?> table, String column, Where where) {
+		return database.min(table, column, where);
+	}
+	@Override
+	public <V> V max(Class<?> table, String column, Where where) {
+		return database.max(table, column, where);
+	}
+	@Override
+	public Map<Object, Long> countBy(Class<?> table, String column, Where where) {
+		return database.countBy(table, column, where);
+	}
+	@Override
+	public <T> Page<T> fetch(PageRequest<T> request) {
+		return database.fetch(request);
+	}
+	@Override
+	public boolean hasOne(Class<?> table, Where where) {
+		return database.hasOne(table, where);
+	}
+	@Override
+	public <T> void forEach(Class<T> table, Where where, Consumer<? super T> action) {
+		database.forEach(table, where, action);
+	}
+}
@@ -0,0 +1,102 @@
+package com.klapeks.sql;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+import com.klapeks.sql.anno.Column;
+import com.klapeks.sql.anno.Nullable;
+import com.klapeks.sql.anno.Primary;
+import com.klapeks.sql.anno.Unique;
+
+public class EntityColumn {
+
+	final Field field;
+	final Accessor accessor;
+	final String name;
+	final Class<?> type;
+	final DataType<?> dataType;
+	final int limit;
+	final String sqlType;
+
+	final boolean isNullable;
+	final boolean isPrimary;
+	final boolean isUnique;
+
+	EntityColumn(Field field, Accessor accessor) {
+		this.field = field;
+		this.accessor = accessor;
+		this.name = field.getAnnotation(Column.class).value();
+		this.type = field.getType();
+		this.isPrimary = field.getAnnotation(Primary.class)!=null;
+		this.isUnique = field.getAnnotation(Unique.class)!=null;
+		this.isNullable = field.getAnnotation(Nullable.class)!=null;
+
+		DataType<?> datatype = DataConverter.getConverter(type);
+		if (datatype==null && List.class.isAssignableFrom(type)) {
+			datatype = DataConverter.getConverter(List.class);
+		}
+		this.dataType = datatype;
+		if (datatype==null) {
+			this.limit = -1;
+			this.sqlType = null;
+			return;
+		}
+		this.limit = ColumnSchema.getLimit(field, datatype);
+		String sqlType = datatype.getSqlType(limit);
+		if (limit > 0) sqlType += "(" + limit + ")";
+		this.sqlType = sqlType;
+	}
+
+	public String getName() {
+		return name;
+	}
+	public Class<?> getType() {
+		return type;
+	}
+	public String getSqlType() {
+		if (sqlType==null) throw new RuntimeException("Can't get converter for " + type);
+		return sqlType;
+	}
+	public boolean isNullable() {
+		return isNullable;
+	}
+	public boolean isPrimary() {
+		return isPrimary;
+	}
+	public boolean isUnique() {
+		return isUnique;
+	}
+
+	Object get(Object object) {
+		return accessor.get(object);
+	}
+	void set(Object object, Object value) {
+		accessor.set(object, value);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	Object toDB(Object value) {
+		if (value==null) return null;
+		if (dataType==null) return DataConverter.convertToDB(value);
+		return ((DataType) dataType).convertToDB(value);
+	}
+	Object fromDB(Object db_value) {
+		return DataConverter.convertFromDB(type, db_value);
+	}
+	/**
+	 * Like {@link #fromDB(Object)}, but a number is first converted to the field's number type,
+	 * for values not read from a database, e.g. a sum is Long or Double whatever the column is
+	 */
+	Object fromStored(Object value) {
+		if (value instanceof Number) {
+			Number number = (Number) value;
+			if (type == long.class || type == Long.class) value = number.longValue();
+			else if (type == double.class || type == Double.class) value = number.doubleValue();
+			else if (type == float.class || type == Float.class) value = number.floatValue();
+			// byte and short are narrowed from Integer by fromDB
+			else if (type == int.class || type == Integer.class || type == short.class || type == Short.class
+					|| type == byte.class || type == Byte.class) value = number.intValue();
+		}
+		return fromDB(value);
+	}
+}
@@ -0,0 +1,81 @@
+package com.klapeks.sql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.klapeks.sql.anno.Index;
+
+public class EntityIndex {
+
+	/** Prefix length used for TEXT columns without {@link Index#length()} */
+	static final int DEFAULT_TEXT_LENGTH = 191;
+
+	final String name;
+	final List<String> columns;
+	final List<Integer> lengths;
+
+	EntityIndex(String name, List<String> columns, List<Integer> lengths) {
+		this.name = name;
+		this.columns = Collections.unmodifiableList(columns);
+		this.lengths = Collections.unmodifiableList(lengths);
+	}
+
+	static EntityIndex of(Index index, EntityColumn column) {
+		List<String> columns = new ArrayList<>();
+		columns.add(column.name);
+		List<Integer> lengths = new ArrayList<>();
+		lengths.add(prefix(column, index.length()));
+		return new EntityIndex(name(index, columns), columns, lengths);
+	}
+	static EntityIndex of(Index index, EntityModel<?> model) {
+		if (index.columns().length == 0) throw new RuntimeException("Index on " + model.type + " has no columns");
+		List<String> columns = new ArrayList<>();
+		List<Integer> lengths = new ArrayList<>();
+		for (String s : index.columns()) {
+			int length = 0;
+			int bracket = s.indexOf('(');
+			if (bracket > 0) {
+				length = Integer.parseInt(s.substring(bracket+1, s.indexOf(')', bracket)).trim());
+				s = s.substring(0, bracket).trim();
+			}
+			EntityColumn column = model.byName.get(s);
+			if (column == null) throw new RuntimeException("Unknown column " + s + " in index of " + model.type);
+			columns.add(s);
+			lengths.add(prefix(column, length));
+		}
+		return new EntityIndex(name(index, columns), columns, lengths);
+	}
+	/**
+	 * Prefix as MySQL keeps it: none if it covers the whole VARCHAR(n), as SUB_PART is NULL then
+	 */
+	private static int prefix(EntityColumn column, int length) {
+		if (length <= 0 && "TEXT".equals(column.sqlType)) return DEFAULT_TEXT_LENGTH;
+		if (column.limit > 0 && length >= column.limit) return 0;
+		return length;
+	}
+	private static String name(Index index, List<String> columns) {
+		if (!index.value().isEmpty()) return index.value();
+		return "idx_" + String.join("_", columns);
+	}
+
+	public String getName() {
+		return name;
+	}
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return column list as in CREATE INDEX, e.g. "`name`(16), `guild`"
+	 */
+	String definition() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) sb.append(", ");
+			sb.append("`").append(columns.get(i)).append("`");
+			if (lengths.get(i) > 0) sb.append("(").append(lengths.get(i)).append(")");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,207 @@
+package com.klapeks.sql;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import com.klapeks.sql.anno.Column;
+import com.klapeks.sql.anno.Index;
+import com.klapeks.sql.anno.Table;
+
+/**
+ * Immutable description of a {@link Table} class.
+ * Built once per class and shared by every {@link Database} implementation.
+ */
+public class EntityModel<T> {
+
+	private static final Map<Class<?>, EntityModel<?>> models = new ConcurrentHashMap<>();
+	private static Accessor.Factory accessorFactory = new Accessor.MethodHandleFactory();
+
+	/**
+	 * Changes how fields are read/written and objects are created.
+	 * Already built models are dropped.
+	 */
+	public static void setAccessorFactory(Accessor.Factory factory) {
+		if (factory==null) throw new NullPointerException("factory");
+		accessorFactory = factory;
+		models.clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> EntityModel<T> of(Class<T> clazz) {
+		EntityModel<?> model = models.get(clazz);
+		if (model == null) model = models.computeIfAbsent(clazz, EntityModel::new);
+		return (EntityModel<T>) model;
+	}
+
+	final Class<T> type;
+	final Table table;
+	final List<EntityColumn> columns;
+	final List<EntityColumn> primaryKeys;
+	final Map<String, EntityColumn> byName;
+	final List<EntityIndex> indexes;
+	final String primaryQuery;
+	private final Supplier<T> instantiator;
+	private final Map<String, String> queries = new ConcurrentHashMap<>();
+
+	private EntityModel(Class<T> clazz) {
+		this.type = clazz;
+		this.table = clazz.getAnnotation(Table.class);
+		if (table==null) throw new RuntimeException(clazz + " is not Table");
+
+		List<EntityColumn> columns = new ArrayList<>();
+		List<EntityColumn> primaryKeys = new ArrayList<>();
+		Map<String, EntityColumn> byName = new LinkedHashMap<>();
+		StringBuilder primaryQuery = new StringBuilder();
+		for (Field field : clazz.getDeclaredFields()) {
+			if (field.getAnnotation(Column.class)==null) continue;
+			EntityColumn column = new EntityColumn(field, accessorFactory.create(field));
+			columns.add(column);
+			byName.put(column.name, column);
+			if (!column.isPrimary) continue;
+			if (!primaryKeys.isEmpty()) primaryQuery.append(" AND ");
+			primaryQuery.append("`");
+			primaryQuery.append(column.name);
+			primaryQuery.append("` = ?");
+			primaryKeys.add(column);
+		}
+		this.columns = Collections.unmodifiableList(columns);
+		this.primaryKeys = Collections.unmodifiableList(primaryKeys);
+		this.byName = Collections.unmodifiableMap(byName);
+
+		List<EntityIndex> indexes = new ArrayList<>();
+		for (Index index : clazz.getAnnotationsByType(Index.class)) {
+			indexes.add(EntityIndex.of(index, this));
+		}
+		for (EntityColumn column : columns) {
+			for (Index index : column.field.getAnnotationsByType(Index.class)) {
+				indexes.add(EntityIndex.of(index, column));
+			}
+		}
+		this.indexes = Collections.unmodifiableList(indexes);
+		this.primaryQuery = primaryQuery.toString();
+
+		Supplier<T> instantiator = null;
+		try {
+			Constructor<T> constructor = clazz.getConstructor();
+			instantiator = accessorFactory.instantiator(constructor);
+		} catch (NoSuchMethodException e) {}
+		this.instantiator = instantiator;
+	}
+
+	public Class<T> getType() {
+		return type;
+	}
+	public String getTableName() {
+		return table.value();
+	}
+	public List<EntityColumn> getColumns() {
+		return columns;
+	}
+	public List<EntityColumn> getPrimaryKeys() {
+		return primaryKeys;
+	}
+	/**
+	 * @return columns with given names, or all columns if none given
+	 */
+	List<EntityColumn> projection(String... names) {
+		if (names == null || names.length == 0) return columns;
+		List<EntityColumn> projection = new ArrayList<>(names.length);
+		for (String name : names) {
+			EntityColumn column = byName.get(name);
+			if (column == null) throw new RuntimeException("Unknown column " + name + " in " + type);
+			projection.add(column);
+		}
+		return projection;
+	}
+	public boolean hasUniqueKey() {
+		if (!primaryKeys.isEmpty()) return true;
+		for (EntityColumn column : columns) {
+			if (column.isUnique) return true;
+		}
+		return false;
+	}
+	public List<EntityIndex> getIndexes() {
+		return indexes;
+	}
+	public EntityColumn getColumn(String name) {
+		return byName.get(name);
+	}
+
+	T newInstance() {
+		if (instantiator==null) throw new RuntimeException(type + " has no public no-arg constructor");
+		return instantiator.get();
+	}
+
+	/**
+	 * Generated SQL of this table, by operation and {@link Where} shape.
+	 * Stops caching new shapes after 256 of them, in case someone puts values right into the query.
+	 */
+	String query(String key, Supplier<String> builder) {
+		String query = queries.get(key);
+		if (query != null) return query;
+		query = builder.get();
+		if (queries.size() < 256) queries.put(key, query);
+		return query;
+	}
+
+	public Where primaryWhere(Object object) {
+		Object[] placeholders = new Object[primaryKeys.size()];
+		for (int i = 0; i < placeholders.length; i++) {
+			placeholders[i] = primaryKeys.get(i).get(object);
+		}
+		return new Where(primaryQuery, placeholders);
+	}
+
+	/**
+	 * Primary key values of a key: the value itself for a single column primary key,
+	 * List or array of values in primary key order for a composite one
+	 */
+	Object[] keyValues(Object key) {
+		if (primaryKeys.isEmpty()) throw new RuntimeException("Table " + getTableName() + " has no primary key");
+		Object[] values;
+		if (primaryKeys.size() == 1) values = new Object[] { key };
+		else if (key instanceof List<?>) values = ((List<?>) key).toArray();
+		else if (key instanceof Object[]) values = ((Object[]) key).clone();
+		else throw new IllegalArgumentException("Composite key of " + getTableName() + " must be a List or an array");
+		if (values.length != primaryKeys.size()) {
+			throw new IllegalArgumentException("Key of " + getTableName() + " must have " + primaryKeys.size() + " values");
+		}
+		return values;
+	}
+	/**
+	 * Key in the form it is used in maps: the value itself or List of values
+	 */
+	Object key(Object[] values) {
+		if (values.length == 1) return values[0];
+		return Arrays.asList(values);
+	}
+	Object keyOf(Object object) {
+		return key(primaryWhere(object).placeholders);
+	}
+	public Where keyWhere(Object key) {
+		return new Where(primaryQuery, keyValues(key));
+	}
+
+	/**
+	 * Copy of object with own Lists and Dates, other values are shared
+	 */
+	T copy(Object object) {
+		T copy = newInstance();
+		for (EntityColumn column : columns) {
+			Object value = column.get(object);
+			if (value instanceof List<?>) value = new ArrayList<>((List<?>) value);
+			else if (value instanceof Date) value = ((Date) value).clone();
+			column.set(copy, value);
+		}
+		return copy;
+	}
+}
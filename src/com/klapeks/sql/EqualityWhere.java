@@ -0,0 +1,120 @@
+package com.klapeks.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link Where} of the simple shape "`a` = ? AND `b` = ?" (the one {@link Database#generateWhere(Object)} makes),
+ * for databases that can't run SQL. Empty query matches every row.
+ */
+class EqualityWhere {
+
+	private static final Pattern CONDITION = Pattern.compile("`?(\\w+)`?\\s*=\\s*\\?");
+	private static final Pattern AND = Pattern.compile("\\s+(?i:and)\\s+");
+	private static final Map<String, String[]> parsed = new ConcurrentHashMap<>();
+
+	final EntityModel<?> model;
+	final EntityColumn[] columns;
+	/** Placeholders as they are stored in database */
+	final Object[] expected;
+
+	private EqualityWhere(EntityModel<?> model, EntityColumn[] columns, Object[] expected) {
+		this.model = model;
+		this.columns = columns;
+		this.expected = expected;
+	}
+
+	static EqualityWhere of(EntityModel<?> model, Where where) {
+		String[] names = parse(where == null ? "" : where.query);
+		Object[] placeholders = where == null ? new Object[0] : where.placeholders;
+		if (names.length != placeholders.length) {
+			throw new IllegalArgumentException("Where has " + names.length + " conditions but " + placeholders.length + " placeholders");
+		}
+		EntityColumn[] columns = new EntityColumn[names.length];
+		Object[] expected = new Object[names.length];
+		for (int i = 0; i < names.length; i++) {
+			columns[i] = model.projection(names[i]).get(0);
+			expected[i] = Database.convertToDB(placeholders[i]);
+		}
+		return new EqualityWhere(model, columns, expected);
+	}
+	private static String[] parse(String query) {
+		String[] names = parsed.get(query);
+		if (names != null) return names;
+		String trimmed = query.trim();
+		if (trimmed.isEmpty()) names = new String[0];
+		else {
+			String[] conditions = AND.split(trimmed);
+			names = new String[conditions.length];
+			for (int i = 0; i < conditions.length; i++) {
+				Matcher matcher = CONDITION.matcher(conditions[i].trim());
+				if (!matcher.matches()) {
+					throw new IllegalArgumentException("Only `column` = ? conditions joined by AND are supported: " + query);
+				}
+				names[i] = matcher.group(1);
+			}
+		}
+		if (parsed.size() < 256) parsed.put(query, names);
+		return names;
+	}
+
+	/**
+	 * @return key to look the row up by, or null if where isn't by the whole primary key
+	 */
+	List<Object> primaryKey() {
+		List<EntityColumn> keys = model.primaryKeys;
+		if (keys.isEmpty() || keys.size() != columns.length) return null;
+		Object[] key = new Object[keys.size()];
+		for (int i = 0; i < columns.length; i++) {
+			int index = keys.indexOf(columns[i]);
+			if (index < 0) return null;
+			key[index] = expected[i];
+		}
+		return key(key);
+	}
+
+	boolean matches(Map<String, Object> stored) {
+		for (int i = 0; i < columns.length; i++) {
+			if (!Update.matches(stored.get(columns[i].name), expected[i])) return false;
+		}
+		return true;
+	}
+	boolean matchesObject(Object row) {
+		for (int i = 0; i < columns.length; i++) {
+			if (!Update.matches(columns[i].toDB(columns[i].get(row)), expected[i])) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Key of stored values that doesn't depend on number types, so 5 and 5L find the same row
+	 */
+	static List<Object> key(Object... stored) {
+		List<Object> key = new ArrayList<>(stored.length);
+		for (Object value : stored) {
+			if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+				value = ((Number) value).longValue();
+			}
+			else if (value instanceof Float) value = ((Float) value).doubleValue();
+			key.add(value);
+		}
+		return key;
+	}
+	static List<Object> primaryKeyOfObject(EntityModel<?> model, Object row) {
+		Object[] stored = new Object[model.primaryKeys.size()];
+		for (int i = 0; i < stored.length; i++) {
+			EntityColumn column = model.primaryKeys.get(i);
+			stored[i] = column.toDB(column.get(row));
+		}
+		return key(stored);
+	}
+	static List<Object> primaryKeyOf(EntityModel<?> model, Map<String, Object> stored) {
+		Object[] values = new Object[model.primaryKeys.size()];
+		for (int i = 0; i < values.length; i++) values[i] = stored.get(model.primaryKeys.get(i).name);
+		return key(values);
+	}
+}
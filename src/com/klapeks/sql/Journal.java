@@ -0,0 +1,185 @@
+package com.klapeks.sql;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of row changes of one {@link MatYML} table.
+ * <p>
+ * Record is [length][crc32][op][key][column count][(name, value)...], values are written by {@link ValueCodec}.
+ * Every record holds the whole row, so replaying a record twice changes nothing.
+ * Torn or corrupted tail (left by a crash in the middle of a write) is ignored on replay.
+ */
+class Journal implements AutoCloseable {
+
+	static final byte PUT = 1, DELETE = 2;
+
+	interface Replayer {
+		void put(String key, Map<String, Object> values);
+		void delete(String key);
+	}
+
+	private final Path file;
+	private final Path rotated;
+	private final MatYML.JournalSync sync;
+	private FileChannel channel;
+	private long size;
+	private boolean unsynced;
+
+	Journal(Path file, MatYML.JournalSync sync) throws IOException {
+		this.file = file;
+		this.rotated = rotated(file);
+		this.sync = sync;
+		open();
+	}
+	static Path rotated(Path file) {
+		return file.resolveSibling(file.getFileName() + ".old");
+	}
+	private void open() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		size = channel.size();
+	}
+
+	synchronized void put(String key, Map<String, Object> values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(PUT);
+		ValueCodec.writeString(out, key);
+		out.writeInt(values.size());
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			ValueCodec.writeString(out, e.getKey());
+			ValueCodec.write(out, e.getValue());
+		}
+		append(bytes.toByteArray());
+	}
+	synchronized void delete(String key) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(DELETE);
+		ValueCodec.writeString(out, key);
+		append(bytes.toByteArray());
+	}
+	private void append(byte[] body) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+		record.putInt(body.length);
+		record.putInt((int) crc.getValue());
+		record.put(body);
+		record.flip();
+		while (record.hasRemaining()) channel.write(record);
+		size += 8 + body.length;
+		if (sync == MatYML.JournalSync.ALWAYS) channel.force(false);
+		else unsynced = true;
+	}
+
+	synchronized long size() {
+		return size;
+	}
+	/**
+	 * Forces written records to disk
+	 */
+	synchronized void sync() throws IOException {
+		if (!unsynced) return;
+		channel.force(false);
+		unsynced = false;
+	}
+	/**
+	 * Moves the log aside and starts a new one, so the snapshot can be written without blocking writers.
+	 * If the log of previous compaction is still aside (its snapshot wasn't written), this one is appended to it.
+	 */
+	synchronized void rotate() throws IOException {
+		channel.force(false);
+		channel.close();
+		if (Files.exists(rotated)) {
+			Files.write(rotated, Files.readAllBytes(file), StandardOpenOption.APPEND);
+			Files.delete(file);
+		}
+		else Files.move(file, rotated, StandardCopyOption.ATOMIC_MOVE);
+		unsynced = false;
+		open();
+	}
+	/**
+	 * Snapshot with every rotated record is written, they are not needed anymore
+	 */
+	void dropRotated() throws IOException {
+		Files.deleteIfExists(rotated);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			sync();
+		} finally {
+			channel.close();
+		}
+	}
+
+	static void delete(Path file) throws IOException {
+		Files.deleteIfExists(rotated(file));
+		Files.deleteIfExists(file);
+	}
+
+	/**
+	 * Replays rotated log and then the current one
+	 * @return how many records were replayed
+	 */
+	static int replay(Path file, Replayer replayer) throws IOException {
+		return replayFile(rotated(file), replayer) + replayFile(file, replayer);
+	}
+	private static int replayFile(Path file, Replayer replayer) throws IOException {
+		if (!Files.exists(file)) return 0;
+		int count = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			while (true) {
+				byte[] body = readRecord(in);
+				if (body == null) break;
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+				byte op = record.readByte();
+				String key = ValueCodec.readString(record);
+				if (op == DELETE) replayer.delete(key);
+				else if (op == PUT) {
+					int columns = record.readInt();
+					Map<String, Object> values = new LinkedHashMap<>();
+					for (int i = 0; i < columns; i++) values.put(ValueCodec.readString(record), ValueCodec.read(record));
+					replayer.put(key, values);
+				}
+				else break;
+				count++;
+			}
+		}
+		return count;
+	}
+	/**
+	 * @return body of next record, or null if there is none or it's torn or corrupted
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int crc = in.readInt();
+			if (length <= 0 || length > 64 * 1024 * 1024) return null;
+			byte[] body = new byte[length];
+			in.readFully(body);
+			CRC32 check = new CRC32();
+			check.update(body);
+			if ((int) check.getValue() != crc) return null;
+			return body;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,674 @@
+package com.klapeks.sql;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.klapeks.libs.bukkit.Main;
+
+/**
+ * Keeps every table in its own memory-mapped binary file, &lt;table&gt;.bin in the folder given to connect.
+ * <p>
+ * File is a header [magic][version][end] followed by records [length][live][column count][(name, value)...],
+ * values are converted by {@link DataConverter} and written by {@link ValueCodec}.
+ * Columns are stored by name, so added or removed columns need no migration.
+ * A changed row is appended as a new record and the old one is marked dead, dead records are dropped by compaction.
+ * Primary key index is rebuilt when the table is loaded, changes are forced to disk every force interval.
+ * <p>
+ * {@link Where} may only have `column` = ? conditions joined by AND, a table file is limited to 2GB.
+ * <p>
+ * Rollback brings killed records back, so tables aren't compacted while any transaction is open.
+ */
+public class MatBinary extends Database {
+
+	static final int MAGIC = 0x4B53424E;
+	static final int VERSION = 1;
+	static final int HEADER = 16;
+	static final byte DEAD = 0, LIVE = 1;
+	static final int INITIAL_SIZE = 64 * 1024;
+	/** Compact when dead records take more than live ones and at least this many bytes */
+	static final int COMPACT_GARBAGE = 1024 * 1024;
+
+	private File folder;
+	private final Map<Class<?>, BinaryTable> tables = new ConcurrentHashMap<>();
+	private long forceInterval = 1000;
+	private ScheduledExecutorService forcer;
+
+	/**
+	 * One table file, every method holds the table's lock
+	 */
+	static class BinaryTable {
+		final EntityModel<?> model;
+		final Path path;
+		private FileChannel channel;
+		private MappedByteBuffer buffer;
+		private int end;
+		private long garbage;
+		/** If there are changes not forced to disk yet */
+		private boolean unforced;
+		/** Offsets of live records by primary key */
+		private final Map<List<Object>, Integer> index = new HashMap<>();
+		/** Offsets of live records in file order */
+		private final TreeSet<Integer> live = new TreeSet<>();
+
+		BinaryTable(EntityModel<?> model, Path path) throws IOException {
+			this.model = model;
+			this.path = path;
+			open();
+		}
+
+		private synchronized void open() throws IOException {
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException(path + " is bigger than 2GB");
+			if (size < HEADER) {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_SIZE);
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				setEnd(HEADER);
+				return;
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if (buffer.getInt(0) != MAGIC) throw new IOException(path + " is not a table file");
+			if (buffer.getInt(4) != VERSION) throw new IOException(path + " has unknown version " + buffer.getInt(4));
+			long end = buffer.getLong(8);
+			this.end = end < HEADER || end > size ? (int) size : (int) end;
+			scan();
+		}
+		/**
+		 * Reads every record up to the end, a torn record (crash in the middle of a write) ends the table
+		 */
+		private void scan() throws IOException {
+			int position = HEADER;
+			while (position + 5 <= end) {
+				int length = buffer.getInt(position);
+				if (length <= 0 || (long) position + 5 + length > end) break;
+				if (buffer.get(position + 4) == LIVE) register(position, read(position));
+				else garbage += 5 + length;
+				position += 5 + length;
+			}
+			setEnd(position);
+		}
+		private void setEnd(int end) {
+			this.end = end;
+			buffer.putLong(8, end);
+			unforced = true;
+		}
+
+		private void register(int offset, Map<String, Object> stored) {
+			live.add(offset);
+			if (model.primaryKeys.isEmpty()) return;
+			Integer old = index.put(EqualityWhere.primaryKeyOf(model, stored), offset);
+			// left by a crash between writing new record and killing the old one
+			if (old != null && live.contains(old)) kill(old);
+		}
+		synchronized Map<String, Object> read(int offset) throws IOException {
+			byte[] body = new byte[buffer.getInt(offset)];
+			ByteBuffer record = buffer.duplicate();
+			record.position(offset + 5);
+			record.get(body);
+			return decode(body);
+		}
+		synchronized int append(Map<String, Object> stored) throws IOException {
+			byte[] body = encode(stored);
+			ensureCapacity(5 + body.length);
+			int offset = end;
+			buffer.putInt(offset, body.length);
+			buffer.put(offset + 4, LIVE);
+			ByteBuffer record = buffer.duplicate();
+			record.position(offset + 5);
+			record.put(body);
+			setEnd(offset + 5 + body.length);
+			register(offset, stored);
+			return offset;
+		}
+		/**
+		 * Index entry of killed record is left in place, lookups check that the record is live.
+		 * Killing a dead record does nothing.
+		 */
+		synchronized void kill(int offset) {
+			if (!live.remove(offset)) return;
+			buffer.put(offset + 4, DEAD);
+			garbage += 5 + buffer.getInt(offset);
+			unforced = true;
+		}
+		/**
+		 * Makes a killed record live again, to undo a change. Reviving a live record does nothing.
+		 */
+		synchronized void revive(int offset) throws IOException {
+			if (live.contains(offset)) return;
+			buffer.put(offset + 4, LIVE);
+			garbage -= 5 + buffer.getInt(offset);
+			unforced = true;
+			register(offset, read(offset));
+		}
+		private void ensureCapacity(int extra) throws IOException {
+			long needed = (long) end + extra;
+			if (needed > Integer.MAX_VALUE) throw new IOException(path + " can't grow over 2GB");
+			if (needed <= buffer.capacity()) return;
+			long size = Math.min(Integer.MAX_VALUE, Math.max((long) buffer.capacity() * 2, needed));
+			MappedByteBuffer old = buffer;
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			old.force();
+			unmap(old);
+		}
+
+		/**
+		 * @return stored values of live records matching where by their offset
+		 */
+		synchronized Map<Integer, Map<String, Object>> find(EqualityWhere where, int limit) throws IOException {
+			Map<Integer, Map<String, Object>> found = new LinkedHashMap<>();
+			List<Object> key = where.primaryKey();
+			if (key != null) {
+				Integer offset = index.get(key);
+				if (offset != null && live.contains(offset)) found.put(offset, read(offset));
+				return found;
+			}
+			for (int offset : live) {
+				if (limit > 0 && found.size() >= limit) break;
+				Map<String, Object> stored = read(offset);
+				if (where.matches(stored)) found.put(offset, stored);
+			}
+			return found;
+		}
+		synchronized boolean contains(List<Object> key) {
+			Integer offset = index.get(key);
+			return offset != null && live.contains(offset);
+		}
+
+		synchronized boolean needsCompaction(int minGarbage) {
+			return garbage > minGarbage && garbage > end - HEADER - garbage;
+		}
+		/**
+		 * Copies live records into a new file and replaces the old one with it.
+		 * Old file is unmapped before the move, if the move fails anyway it is opened again.
+		 */
+		synchronized void compact() throws IOException {
+			if (garbage == 0) return;
+			Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				int size = HEADER;
+				for (int offset : live) size += 5 + buffer.getInt(offset);
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				header.putInt(MAGIC).putInt(VERSION).putLong(size).flip();
+				while (header.hasRemaining()) out.write(header);
+				for (int offset : live) {
+					ByteBuffer record = buffer.duplicate();
+					record.limit(offset + 5 + buffer.getInt(offset));
+					record.position(offset);
+					while (record.hasRemaining()) out.write(record);
+				}
+				out.force(true);
+			}
+			close();
+			try {
+				try {
+					Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (IOException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			} finally {
+				index.clear();
+				live.clear();
+				garbage = 0;
+				open();
+			}
+		}
+		synchronized void force() {
+			if (!unforced || buffer == null) return;
+			buffer.force();
+			unforced = false;
+		}
+		/**
+		 * Forces and unmaps the file, the table can't be used after it
+		 */
+		synchronized void close() throws IOException {
+			MappedByteBuffer buffer = this.buffer;
+			this.buffer = null;
+			try {
+				buffer.force();
+			} finally {
+				channel.close();
+				unmap(buffer);
+			}
+		}
+	}
+
+	private static final Consumer<MappedByteBuffer> UNMAP = unmapper();
+	/**
+	 * Releases a mapping right away instead of when it is collected, so the file can be replaced
+	 * (Windows refuses while it is mapped) and old mappings don't pile up on remaps.
+	 * Does nothing on JVMs that don't allow it. The buffer must not be used after it.
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		if (buffer != null) UNMAP.accept(buffer);
+	}
+	private static Consumer<MappedByteBuffer> unmapper() {
+		try {
+			// Java 9+
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			return buffer -> {
+				try {
+					invokeCleaner.invoke(unsafe, buffer);
+				} catch (ReflectiveOperationException e) {
+					// left to the collector
+				}
+			};
+		} catch (NoSuchMethodException e) {
+			// Java 8
+			return buffer -> {
+				try {
+					Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+					cleanerMethod.setAccessible(true);
+					Object cleaner = cleanerMethod.invoke(buffer);
+					if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+				} catch (ReflectiveOperationException | RuntimeException ex) {
+					// left to the collector
+				}
+			};
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return buffer -> {};
+		}
+	}
+
+	/**
+	 * Writes rows as a table file without dead records, through a temporary file and a move
+	 */
+	static void writeFile(Path path, Collection<Map<String, Object>> rows) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			List<byte[]> bodies = new ArrayList<>(rows.size());
+			long end = HEADER;
+			for (Map<String, Object> stored : rows) {
+				byte[] body = encode(stored);
+				bodies.add(body);
+				end += 5 + body.length;
+			}
+			if (end > Integer.MAX_VALUE) throw new IOException(path + " can't grow over 2GB");
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(end);
+			for (byte[] body : bodies) {
+				out.writeInt(body.length);
+				out.writeByte(LIVE);
+				out.write(body);
+			}
+		}
+		try {
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	/**
+	 * @return stored values of live records of a table file, up to a torn record if there is one
+	 */
+	static List<Map<String, Object>> readFile(Path path) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		List<Map<String, Object>> rows = new ArrayList<>();
+		if (buffer.limit() < HEADER) return rows;
+		if (buffer.getInt(0) != MAGIC) throw new IOException(path + " is not a table file");
+		if (buffer.getInt(4) != VERSION) throw new IOException(path + " has unknown version " + buffer.getInt(4));
+		long end = buffer.getLong(8);
+		if (end < HEADER || end > buffer.limit()) end = buffer.limit();
+		int position = HEADER;
+		while (position + 5 <= end) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || (long) position + 5 + length > end) break;
+			if (buffer.get(position + 4) == LIVE) {
+				byte[] body = new byte[length];
+				ByteBuffer record = buffer.duplicate();
+				record.position(position + 5);
+				record.get(body);
+				rows.add(decode(body));
+			}
+			position += 5 + length;
+		}
+		return rows;
+	}
+
+	static Map<String, Object> stored(EntityModel<?> model, Object object) {
+		Map<String, Object> stored = new LinkedHashMap<>();
+		for (EntityColumn column : model.columns) stored.put(column.name, column.toDB(column.get(object)));
+		return stored;
+	}
+	static byte[] encode(Map<String, Object> stored) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(stored.size());
+		for (Map.Entry<String, Object> e : stored.entrySet()) {
+			ValueCodec.writeString(out, e.getKey());
+			ValueCodec.write(out, e.getValue());
+		}
+		return bytes.toByteArray();
+	}
+	static Map<String, Object> decode(byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		int size = in.readInt();
+		Map<String, Object> stored = new LinkedHashMap<>();
+		for (int i = 0; i < size; i++) stored.put(ValueCodec.readString(in), ValueCodec.read(in));
+		return stored;
+	}
+	/**
+	 * Columns missing in stored values keep the value the constructor gave them
+	 */
+	static <T> T generate(EntityModel<T> model, Map<String, Object> stored) {
+		T object = model.newInstance();
+		for (EntityColumn column : model.columns) {
+			if (!stored.containsKey(column.name)) continue;
+			Object value = column.fromStored(stored.get(column.name));
+			if (value == null && column.type.isPrimitive()) continue;
+			column.set(object, value);
+		}
+		return object;
+	}
+
+	/**
+	 * Forces changes of every table to disk every forceInterval milliseconds, default is 1000.
+	 * 0 or less to leave it to the operating system, {@link #flush()} and disconnect.
+	 */
+	public synchronized void setForceInterval(long forceInterval) {
+		this.forceInterval = forceInterval;
+		stopForcer();
+		if (!tables.isEmpty()) startForcer();
+	}
+	private synchronized void startForcer() {
+		if (forcer != null || forceInterval <= 0) return;
+		forcer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "KlapeksSQL binary-force");
+			thread.setDaemon(true);
+			return thread;
+		});
+		forcer.scheduleWithFixedDelay(() -> {
+			try {
+				flush();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}, forceInterval, forceInterval, TimeUnit.MILLISECONDS);
+	}
+	private synchronized void stopForcer() {
+		if (forcer == null) return;
+		forcer.shutdown();
+		try {
+			forcer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		forcer = null;
+	}
+
+	@Override
+	public void connect(String path, Properties properties) {
+		this.folder = new File(path);
+	}
+	@Override
+	public void disconnect() {
+		stopForcer();
+		tables.forEach((type, table) -> {
+			try {
+				if (undo.isIdle() && table.needsCompaction(0)) table.compact();
+				table.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		tables.clear();
+	}
+	/**
+	 * Forces changes of every table to disk
+	 */
+	public void flush() {
+		for (BinaryTable table : tables.values()) table.force();
+	}
+
+	File getFolder() {
+		if (folder != null) return folder;
+		return new File(Main.plugin.getDataFolder(), "db");
+	}
+	Path getTablePath(EntityModel<?> model) {
+		return new File(getFolder(), model.getTableName() + ".bin").toPath();
+	}
+	private BinaryTable getTable(EntityModel<?> model) {
+		BinaryTable table = tables.get(model.type);
+		if (table == null) throw new RuntimeException("Unknown table: " + model.getTableName());
+		return table;
+	}
+	/**
+	 * Compaction moves records, so it waits until no transaction can need their offsets
+	 */
+	private void compactIfNeeded(BinaryTable table) throws IOException {
+		if (undo.isIdle() && table.needsCompaction(COMPACT_GARBAGE)) table.compact();
+	}
+	/**
+	 * Remembers how to undo a change, if the current thread is in a transaction.
+	 * Old record is revived before the new one is killed, so a crash in between doesn't lose the row.
+	 * @param offset - record written by the change, -1 if it only deleted
+	 * @param previous - record killed by the change, -1 if it only inserted
+	 */
+	private void changed(BinaryTable table, int offset, int previous) {
+		if (!undo.isActive()) return;
+		undo.record(() -> {
+			try {
+				if (previous >= 0) table.revive(previous);
+				if (offset >= 0) table.kill(offset);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	@Override
+	public boolean checkIfTableExists(Class<?> table) {
+		return tables.containsKey(table) || Files.exists(getTablePath(EntityModel.of(table)));
+	}
+	@Override
+	public void createTable(Class<?> table) {
+		if (tables.containsKey(table)) return;
+		EntityModel<?> model = EntityModel.of(table);
+		Path path = getTablePath(model);
+		try {
+			Files.createDirectories(path.getParent());
+			tables.put(table, new BinaryTable(model, path));
+			startForcer();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Columns are stored by name, nothing to change
+	 */
+	@Override
+	public void updateTable(Class<?> table) {}
+
+	@Override
+	public void insert(Object object) {
+		EntityModel<?> model = model(object);
+		BinaryTable table = getTable(model);
+		Map<String, Object> stored = stored(model, object);
+		synchronized (table) {
+			if (!model.primaryKeys.isEmpty() && table.contains(EqualityWhere.primaryKeyOf(model, stored))) {
+				throw new RuntimeException("Duplicate entry " + EqualityWhere.primaryKeyOf(model, stored) + " for table " + model.getTableName());
+			}
+			try {
+				changed(table, table.append(stored), -1);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	/**
+	 * New record is appended before the old one is killed, so a failed append leaves the old row in place
+	 */
+	@Override
+	public void update(Object object, Where where) {
+		EntityModel<?> model = model(object);
+		BinaryTable table = getTable(model);
+		EqualityWhere equality = EqualityWhere.of(model, where);
+		Map<String, Object> stored = stored(model, object);
+		synchronized (table) {
+			try {
+				Map<Integer, Map<String, Object>> found = table.find(equality, where.limit);
+				checkKeys(table, found.values(), Collections.nCopies(found.size(), stored));
+				for (int offset : found.keySet()) {
+					int appended = table.append(stored);
+					table.kill(offset);
+					changed(table, appended, offset);
+				}
+				compactIfNeeded(table);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	/**
+	 * Throws if replacing old rows by new ones would leave two live rows with the same primary key
+	 */
+	static void checkKeys(BinaryTable table, Collection<Map<String, Object>> old, Collection<Map<String, Object>> replacements) {
+		EntityModel<?> model = table.model;
+		if (model.primaryKeys.isEmpty()) return;
+		Set<List<Object>> oldKeys = new HashSet<>();
+		for (Map<String, Object> stored : old) oldKeys.add(EqualityWhere.primaryKeyOf(model, stored));
+		Set<List<Object>> newKeys = new HashSet<>();
+		for (Map<String, Object> stored : replacements) {
+			List<Object> key = EqualityWhere.primaryKeyOf(model, stored);
+			if (!newKeys.add(key) || (!oldKeys.contains(key) && table.contains(key))) {
+				throw new RuntimeException("Duplicate entry " + key + " for table " + model.getTableName());
+			}
+		}
+	}
+	@Override
+	public void updateOrInsert(Object object, Where where) {
+		BinaryTable table = getTable(model(object));
+		synchronized (table) {
+			super.updateOrInsert(object, where);
+		}
+	}
+
+	@Override
+	public int delete(Class<?> table, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		BinaryTable binary = getTable(model);
+		EqualityWhere equality = EqualityWhere.of(model, where);
+		synchronized (binary) {
+			try {
+				int deleted = 0;
+				for (int offset : binary.find(equality, where == null ? -1 : where.limit).keySet()) {
+					binary.kill(offset);
+					changed(binary, -1, offset);
+					deleted++;
+				}
+				compactIfNeeded(binary);
+				return deleted;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Applies the update to stored values of every matching row.
+	 */
+	@Override
+	public int execute(Update update) {
+		BinaryTable table = getTable(update.model);
+		EqualityWhere equality = EqualityWhere.of(update.model, update.where);
+		synchronized (table) {
+			try {
+				Map<Integer, Map<String, Object>> old = new LinkedHashMap<>();
+				Map<Integer, Map<String, Object>> changed = new LinkedHashMap<>();
+				rows: for (Map.Entry<Integer, Map<String, Object>> row : table.find(equality, update.where.limit).entrySet()) {
+					Map<String, Object> stored = new LinkedHashMap<>(row.getValue());
+					for (Update.Condition condition : update.conditions) {
+						Object expected = update.model.byName.get(condition.column).toDB(condition.expected);
+						if (!Update.matches(stored.get(condition.column), expected)) continue rows;
+					}
+					for (Update.Action action : update.actions) {
+						if (action.kind == Update.Kind.INCREMENT) {
+							stored.put(action.column, Update.add(stored.get(action.column), (Number) action.value));
+						}
+						else stored.put(action.column, update.model.byName.get(action.column).toDB(action.value));
+					}
+					old.put(row.getKey(), row.getValue());
+					changed.put(row.getKey(), stored);
+				}
+				checkKeys(table, old.values(), changed.values());
+				for (Map.Entry<Integer, Map<String, Object>> row : changed.entrySet()) {
+					int appended = table.append(row.getValue());
+					table.kill(row.getKey());
+					changed(table, appended, row.getKey());
+				}
+				compactIfNeeded(table);
+				return changed.size();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	@Override
+	public <T> List<T> select(Class<T> table, Where where) {
+		EntityModel<T> model = EntityModel.of(table);
+		BinaryTable binary = getTable(model);
+		EqualityWhere equality = EqualityWhere.of(model, where);
+		List<T> list = new ArrayList<>();
+		try {
+			for (Map<String, Object> stored : binary.find(equality, where.limit).values()) {
+				list.add(generate(model, stored));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return list;
+	}
+	@Override
+	public boolean hasOne(Class<?> table, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		BinaryTable binary = getTable(model);
+		EqualityWhere equality = EqualityWhere.of(model, where);
+		List<Object> key = equality.primaryKey();
+		if (key != null) return binary.contains(key);
+		try {
+			return !binary.find(equality, 1).isEmpty();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
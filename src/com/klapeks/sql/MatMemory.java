@@ -0,0 +1,360 @@
+package com.klapeks.sql;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps tables in memory, safe to use from any thread.
+ * Rows are held by primary key, @{@link com.klapeks.sql.anno.Unique} columns get their own index.
+ * Objects are copied in and out, so changing a found object doesn't change the table until it is written.
+ * <p>
+ * Without {@link #connect(String, Properties)} nothing is saved, which suits tests and short-lived tables.
+ * When connected to a folder, changed tables are saved there every snapshot interval and on disconnect,
+ * in the same file format as {@link MatBinary}, and loaded back by {@link #createTable(Class)}.
+ * <p>
+ * {@link Where} may only have `column` = ? conditions joined by AND.
+ */
+public class MatMemory extends Database {
+
+	static class MemoryTable {
+		final EntityModel<?> model;
+		/** Rows by primary key, or by a generated key for tables without one */
+		final Map<List<Object>, Object> rows = new ConcurrentHashMap<>();
+		/** Primary keys by value of each unique column */
+		final Map<EntityColumn, Map<List<Object>, List<Object>>> uniques = new HashMap<>();
+		private final AtomicLong sequence = new AtomicLong();
+		volatile boolean dirty;
+
+		MemoryTable(EntityModel<?> model) {
+			this.model = model;
+			for (EntityColumn column : model.columns) {
+				if (column.isUnique && !column.isPrimary) uniques.put(column, new ConcurrentHashMap<>());
+			}
+		}
+
+		List<Object> keyOf(Object row) {
+			if (model.primaryKeys.isEmpty()) return Collections.singletonList(sequence.incrementAndGet());
+			return EqualityWhere.primaryKeyOfObject(model, row);
+		}
+		private static List<Object> uniqueValue(EntityColumn column, Object row) {
+			Object value = column.toDB(column.get(row));
+			return value == null ? null : EqualityWhere.key(value);
+		}
+
+		/**
+		 * @return keys of rows matching where
+		 */
+		List<List<Object>> find(EqualityWhere where, int limit) {
+			List<List<Object>> found = new ArrayList<>();
+			List<Object> key = where.primaryKey();
+			if (key != null) {
+				if (rows.containsKey(key)) found.add(key);
+				return found;
+			}
+			if (where.columns.length == 1 && uniques.containsKey(where.columns[0])) {
+				key = uniques.get(where.columns[0]).get(EqualityWhere.key(where.expected[0]));
+				if (key != null && rows.containsKey(key)) found.add(key);
+				return found;
+			}
+			for (Map.Entry<List<Object>, Object> e : rows.entrySet()) {
+				if (limit > 0 && found.size() >= limit) break;
+				if (where.matchesObject(e.getValue())) found.add(e.getKey());
+			}
+			return found;
+		}
+
+		/**
+		 * Puts row in place of the one at old key (null to add), checking primary and unique keys
+		 * @return key the row is held by
+		 */
+		synchronized List<Object> put(List<Object> old, Object row) {
+			List<Object> key = old != null && model.primaryKeys.isEmpty() ? old : keyOf(row);
+			if (!key.equals(old) && rows.containsKey(key)) {
+				throw new RuntimeException("Duplicate entry " + key + " for table " + model.getTableName());
+			}
+			for (Map.Entry<EntityColumn, Map<List<Object>, List<Object>>> unique : uniques.entrySet()) {
+				List<Object> value = uniqueValue(unique.getKey(), row);
+				if (value == null) continue;
+				List<Object> owner = unique.getValue().get(value);
+				if (owner != null && !owner.equals(old) && rows.containsKey(owner)) {
+					throw new RuntimeException("Duplicate entry " + value + " for key " + unique.getKey().name + " of table " + model.getTableName());
+				}
+			}
+			Object previous = old == null ? null : rows.get(old);
+			if (previous != null && !key.equals(old)) rows.remove(old);
+			rows.put(key, row);
+			for (Map.Entry<EntityColumn, Map<List<Object>, List<Object>>> unique : uniques.entrySet()) {
+				if (previous != null) {
+					List<Object> value = uniqueValue(unique.getKey(), previous);
+					if (value != null) unique.getValue().remove(value, old);
+				}
+				List<Object> value = uniqueValue(unique.getKey(), row);
+				if (value != null) unique.getValue().put(value, key);
+			}
+			dirty = true;
+			return key;
+		}
+		/**
+		 * @return removed row, or null if there was none
+		 */
+		synchronized Object remove(List<Object> key) {
+			Object row = rows.remove(key);
+			if (row == null) return null;
+			for (Map.Entry<EntityColumn, Map<List<Object>, List<Object>>> unique : uniques.entrySet()) {
+				List<Object> value = uniqueValue(unique.getKey(), row);
+				if (value != null) unique.getValue().remove(value, key);
+			}
+			dirty = true;
+			return row;
+		}
+	}
+
+	private final Map<Class<?>, MemoryTable> tables = new ConcurrentHashMap<>();
+	private File folder;
+	private long snapshotInterval = 60_000;
+	private ScheduledExecutorService snapshotter;
+
+	/**
+	 * Saves changed tables into the folder every snapshotInterval milliseconds, default is 60000.
+	 * 0 or less to save only on disconnect.
+	 */
+	public synchronized void setSnapshotInterval(long snapshotInterval) {
+		this.snapshotInterval = snapshotInterval;
+		stopSnapshotter();
+		if (folder != null) startSnapshotter();
+	}
+	private synchronized void startSnapshotter() {
+		if (snapshotter != null || snapshotInterval <= 0) return;
+		snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "KlapeksSQL memory-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		snapshotter.scheduleWithFixedDelay(() -> {
+			try {
+				snapshot();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+	}
+	private synchronized void stopSnapshotter() {
+		if (snapshotter == null) return;
+		snapshotter.shutdown();
+		try {
+			snapshotter.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		snapshotter = null;
+	}
+
+	/**
+	 * @param path - folder to save tables into
+	 */
+	@Override
+	public void connect(String path, Properties properties) {
+		this.folder = new File(path);
+		startSnapshotter();
+	}
+	/**
+	 * Saves changed tables and drops them from memory.
+	 * Tables that failed to save are kept, and the error is thrown, so disconnect can be called again.
+	 */
+	@Override
+	public void disconnect() {
+		stopSnapshotter();
+		RuntimeException error = null;
+		for (Map.Entry<Class<?>, MemoryTable> e : tables.entrySet()) {
+			try {
+				snapshot(e.getValue());
+				tables.remove(e.getKey());
+			} catch (IOException ex) {
+				if (error == null) error = new RuntimeException("Can't save tables of " + folder, ex);
+				else error.addSuppressed(ex);
+			}
+		}
+		if (error != null) throw error;
+	}
+
+	/**
+	 * Saves every changed table now, does nothing when not connected to a folder.
+	 * Tables that failed to save stay changed and are saved next time.
+	 */
+	public void snapshot() {
+		for (MemoryTable table : tables.values()) {
+			try {
+				snapshot(table);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	private void snapshot(MemoryTable table) throws IOException {
+		if (folder == null || !table.dirty) return;
+		table.dirty = false;
+		List<Map<String, Object>> rows = new ArrayList<>(table.rows.size());
+		for (Object row : table.rows.values()) rows.add(MatBinary.stored(table.model, row));
+		try {
+			Path path = getTablePath(table.model);
+			Files.createDirectories(path.getParent());
+			MatBinary.writeFile(path, rows);
+		} catch (IOException e) {
+			table.dirty = true;
+			throw e;
+		}
+	}
+	Path getTablePath(EntityModel<?> model) {
+		return new File(folder, model.getTableName() + ".bin").toPath();
+	}
+
+	private MemoryTable getTable(EntityModel<?> model) {
+		MemoryTable table = tables.get(model.type);
+		if (table == null) throw new RuntimeException("Unknown table: " + model.getTableName());
+		return table;
+	}
+
+	@Override
+	public boolean checkIfTableExists(Class<?> table) {
+		return tables.containsKey(table);
+	}
+	@Override
+	public void createTable(Class<?> table) {
+		tables.computeIfAbsent(table, type -> {
+			EntityModel<?> model = EntityModel.of(type);
+			MemoryTable memory = new MemoryTable(model);
+			if (folder == null || !Files.exists(getTablePath(model))) return memory;
+			try {
+				for (Map<String, Object> stored : MatBinary.readFile(getTablePath(model))) {
+					memory.put(null, MatBinary.generate(model, stored));
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			memory.dirty = false;
+			return memory;
+		});
+	}
+	/**
+	 * Rows are objects, nothing to change
+	 */
+	@Override
+	public void updateTable(Class<?> table) {}
+
+	/**
+	 * Remembers how to undo a change, if the current thread is in a transaction
+	 * @param key - key the row is held by now, null if it was deleted
+	 * @param old - key the row was held by, null if it was inserted
+	 * @param previous - row before the change, null if it was inserted
+	 */
+	private void changed(MemoryTable table, List<Object> key, List<Object> old, Object previous) {
+		if (!undo.isActive()) return;
+		undo.record(() -> {
+			synchronized (table) {
+				if (key != null && !key.equals(old)) table.remove(key);
+				if (previous != null) table.put(old, previous);
+			}
+		});
+	}
+
+	@Override
+	public void insert(Object object) {
+		EntityModel<?> model = model(object);
+		MemoryTable table = getTable(model);
+		changed(table, table.put(null, model.copy(object)), null, null);
+	}
+	@Override
+	public void update(Object object, Where where) {
+		EntityModel<?> model = model(object);
+		MemoryTable table = getTable(model);
+		EqualityWhere equality = EqualityWhere.of(model, where);
+		synchronized (table) {
+			for (List<Object> key : table.find(equality, where.limit)) {
+				Object previous = table.rows.get(key);
+				changed(table, table.put(key, model.copy(object)), key, previous);
+			}
+		}
+	}
+	@Override
+	public void updateOrInsert(Object object, Where where) {
+		MemoryTable table = getTable(model(object));
+		synchronized (table) {
+			super.updateOrInsert(object, where);
+		}
+	}
+
+	@Override
+	public int delete(Class<?> table, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		MemoryTable memory = getTable(model);
+		EqualityWhere equality = EqualityWhere.of(model, where);
+		synchronized (memory) {
+			int deleted = 0;
+			for (List<Object> key : memory.find(equality, where == null ? -1 : where.limit)) {
+				Object removed = memory.remove(key);
+				if (removed == null) continue;
+				changed(memory, null, key, removed);
+				deleted++;
+			}
+			return deleted;
+		}
+	}
+
+	/**
+	 * Applies the update to a copy of every matching row and puts it in place.
+	 */
+	@Override
+	public int execute(Update update) {
+		EntityModel<?> model = update.model;
+		MemoryTable table = getTable(model);
+		EqualityWhere equality = EqualityWhere.of(model, update.where);
+		synchronized (table) {
+			int changed = 0;
+			for (List<Object> key : table.find(equality, update.where.limit)) {
+				Object row = table.rows.get(key);
+				Object copy = model.copy(row);
+				if (!update.applyTo(copy)) continue;
+				changed(table, table.put(key, copy), key, row);
+				changed++;
+			}
+			return changed;
+		}
+	}
+
+	@Override
+	public <T> List<T> select(Class<T> table, Where where) {
+		EntityModel<T> model = EntityModel.of(table);
+		MemoryTable memory = getTable(model);
+		List<T> list = new ArrayList<>();
+		for (List<Object> key : memory.find(EqualityWhere.of(model, where), where.limit)) {
+			Object row = memory.rows.get(key);
+			if (row != null) list.add(model.copy(row));
+		}
+		return list;
+	}
+	@Override
+	public boolean hasOne(Class<?> table, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		return !getTable(model).find(EqualityWhere.of(model, where), 1).isEmpty();
+	}
+	@Override
+	public long count(Class<?> table, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		MemoryTable memory = getTable(model);
+		if (where == null || where.query.trim().isEmpty()) return memory.rows.size();
+		return memory.find(EqualityWhere.of(model, where), -1).size();
+	}
+}
@@ -1,224 +1,1161 @@
 package com.klapeks.sql;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
+import java.math.BigDecimal;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
-
-import com.klapeks.sql.anno.Column;
-import com.klapeks.sql.anno.Nullable;
-import com.klapeks.sql.anno.Table;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class MatSQL extends Database {
 
-	private Connection connection;
+	private static final Pattern PATCH_VERSION = Pattern.compile("^\\d+\\.\\d+\\.(\\d+)");
+
+	private ConnectionPool pool;
+	private int statementCacheSize = 64;
+	private int batchSize = 500;
+	private int fetchSize = Integer.MIN_VALUE;
+	private ChangeTracker tracker;
+	/** Objects read by {@link #select(Class, Where, String...)}, with unselected columns {@link ChangeTracker#NOT_LOADED} */
+	private final ChangeTracker projected = new ChangeTracker();
+	private final ThreadLocal<StatementCache> transaction = new ThreadLocal<>();
+	private final ThreadLocal<Boolean> streaming = new ThreadLocal<>();
+	/** If the server takes a row alias in upserts, null until asked */
+	private volatile Boolean rowAlias;
+
+	/**
+	 * Besides driver properties accepts the {@link ConnectionPool} "pool.*" settings,
+	 * e.g. "pool.maxSize" to run queries of several threads at the same time.
+	 */
 	@Override
 	public void connect(String url, Properties properties) {
 		disconnect();
+		rowAlias = null;
+		pool = new ConnectionPool(url, properties, statementCacheSize);
+	}
+
+	@Override
+	public void disconnect() {
+		if (pool == null) return;
+		pool.close();
+		pool = null;
+	}
+
+	/**
+	 * How many prepared statements are kept open per connection. Applied on next connect.
+	 */
+	public void setStatementCacheSize(int statementCacheSize) {
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	/**
+	 * How many rows {@link #insertAll(Collection)} and others send and commit at once
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) throw new IllegalArgumentException("Batch size must be positive");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * How many rows {@link #forEach(Class, Where, Consumer)} reads at once.
+	 * Positive value is the page size over tables with primary key, and JDBC fetch size over tables without one,
+	 * which needs "useCursorFetch=true" connection property.
+	 * Default {@link Integer#MIN_VALUE} reads pages of {@link #setBatchSize(int)} rows, or makes MySQL driver
+	 * stream rows one by one over tables without primary key.
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * If enabled, remembers column values of objects read or written by this database,
+	 * and {@link #update(Object)} writes only the changed columns, or nothing if none changed.
+	 * Rows changed by {@link #execute(Update)} or deleted by where drop the snapshots of their table.
+	 */
+	public void setDirtyTracking(boolean enabled) {
+		if (!enabled) tracker = null;
+		else if (tracker == null) tracker = new ChangeTracker();
+	}
+	/**
+	 * Makes next update of the object write all columns, also the ones it wasn't selected with
+	 */
+	public void markDirty(Object object) {
+		ChangeTracker tracker = this.tracker;
+		if (tracker != null) tracker.remove(object);
+		projected.remove(object);
+	}
+	/**
+	 * @return which columns the object was selected with, or null if it wasn't selected by some of them
+	 */
+	boolean[] loadedColumns(Object object) {
+		Object[] snapshot = projected.get(object);
+		if (snapshot == null) return null;
+		boolean[] loaded = new boolean[snapshot.length];
+		for (int i = 0; i < loaded.length; i++) loaded[i] = snapshot[i] != ChangeTracker.NOT_LOADED;
+		return loaded;
+	}
+	void track(EntityModel<?> model, Object object) {
+		track(model, model.columns, object);
+	}
+	void track(EntityModel<?> model, List<EntityColumn> columns, Object object) {
+		ChangeTracker tracker = this.tracker;
+		if (tracker != null) tracker.put(object, ChangeTracker.values(model, columns, object));
+	}
+
+	/**
+	 * Rolled back writes are in the snapshots, so they'd be skipped as unchanged by next update.
+	 * Which objects were written in the transaction isn't known, so all of them write every column next time.
+	 */
+	private void forgetSnapshots() {
+		ChangeTracker tracker = this.tracker;
+		if (tracker != null) tracker.clear();
+	}
+	/**
+	 * Drops snapshots of the table after rows were changed by where, as any tracked object may be one of them
+	 */
+	private void forgetSnapshots(Class<?> table) {
+		ChangeTracker tracker = this.tracker;
+		if (tracker != null) tracker.removeAll(table);
+	}
+
+	public ConnectionPool getPool() {
+		return pool;
+	}
+
+	@FunctionalInterface
+	interface SQLFunction<T, R> {
+		R apply(T t) throws SQLException;
+	}
+
+	<R> R withStatements(SQLFunction<StatementCache, R> action) {
+		if (streaming.get() != null) {
+			throw new IllegalStateException("Database can't be used inside forEach of a table without primary key");
+		}
+		StatementCache pinned = transaction.get();
+		if (pinned != null) {
+			try {
+				return action.apply(pinned);
+			} catch (SQLException e) {
+				throw new RuntimeSQLException(e);
+			}
+		}
+		ConnectionPool pool = this.pool;
+		if (pool == null) throw new RuntimeException("Database is not connected");
+		StatementCache statements = pool.borrow();
+		boolean broken = false;
+		try {
+			return action.apply(statements);
+		} catch (SQLException e) {
+			broken = isConnectionError(e);
+			throw new RuntimeSQLException(e);
+		} finally {
+			pool.release(statements, broken);
+		}
+	}
+	static boolean isConnectionError(SQLException e) {
+		return e.getSQLState() != null && e.getSQLState().startsWith("08");
+	}
+	/**
+	 * Pins a connection to the current thread and disables autocommit on it,
+	 * every operation of this thread runs in the transaction until {@link #commit()} or {@link #rollback()}.
+	 */
+	@Override
+	public void begin() {
+		if (transaction.get() != null) throw new IllegalStateException("Transaction is already started");
+		ConnectionPool pool = this.pool;
+		if (pool == null) throw new RuntimeException("Database is not connected");
+		StatementCache statements = pool.borrow();
+		try {
+			statements.connection.setAutoCommit(false);
+		} catch (SQLException e) {
+			pool.release(statements, true);
+			throw new RuntimeSQLException(e);
+		}
+		transaction.set(statements);
+	}
+	@Override
+	public void commit() {
+		end(true);
+	}
+	@Override
+	public void rollback() {
+		end(false);
+	}
+	@Override
+	public boolean isInTransaction() {
+		return transaction.get() != null;
+	}
+	/**
+	 * If commit or rollback fails the connection is dropped without turning autocommit back on,
+	 * since that would commit whatever the transaction left
+	 */
+	private void end(boolean commit) {
+		StatementCache statements = transaction.get();
+		if (statements == null) throw new IllegalStateException("Transaction is not started");
+		transaction.remove();
+		Connection connection = statements.connection;
+		boolean broken = false;
+		if (!commit) forgetSnapshots();
 		try {
-			connection = DriverManager.getConnection(url, properties);
+			if (commit) connection.commit();
+			else connection.rollback();
 		} catch (SQLException e) {
+			if (commit) forgetSnapshots();
+			broken = true;
+			if (commit) {
+				try {
+					connection.rollback();
+				} catch (SQLException ex) {
+					e.addSuppressed(ex);
+				}
+			}
 			throw new RuntimeSQLException(e);
+		} finally {
+			if (!broken) {
+				try {
+					connection.setAutoCommit(true);
+				} catch (SQLException e) {
+					broken = true;
+				}
+			}
+			ConnectionPool pool = this.pool;
+			if (pool != null) pool.release(statements, broken);
+			else {
+				statements.close();
+				StatementCache.closeQuietly(connection);
+			}
 		}
 	}
 
+	/**
+	 * Runs action in a transaction, committed if action finished and rolled back if it threw.
+	 * Inside of another transaction uses a savepoint instead.
+	 */
 	@Override
-	public void disconnect() {
-		if (connection == null) return;
+	public void inTransaction(Consumer<Database> action) {
+		if (transaction.get() != null) {
+			Savepoint savepoint = savepoint(null);
+			try {
+				action.accept(this);
+			} catch (RuntimeException | Error e) {
+				try {
+					rollbackTo(savepoint);
+				} catch (RuntimeException ex) {
+					e.addSuppressed(ex);
+				}
+				throw e;
+			}
+			releaseSavepoint(savepoint);
+			return;
+		}
+		begin();
 		try {
-			connection.close();
+			action.accept(this);
+		} catch (RuntimeException | Error e) {
+			try {
+				rollback();
+			} catch (RuntimeException ex) {
+				e.addSuppressed(ex);
+			}
+			throw e;
+		}
+		commit();
+	}
+
+	/**
+	 * @param name - savepoint name, or null for unnamed one
+	 */
+	public Savepoint savepoint(String name) {
+		StatementCache statements = transaction.get();
+		if (statements == null) throw new IllegalStateException("Transaction is not started");
+		try {
+			if (name == null) return statements.connection.setSavepoint();
+			return statements.connection.setSavepoint(name);
+		} catch (SQLException e) {
+			throw new RuntimeSQLException(e);
+		}
+	}
+	public void rollbackTo(Savepoint savepoint) {
+		StatementCache statements = transaction.get();
+		if (statements == null) throw new IllegalStateException("Transaction is not started");
+		forgetSnapshots();
+		try {
+			statements.connection.rollback(savepoint);
+		} catch (SQLException e) {
+			throw new RuntimeSQLException(e);
+		}
+	}
+	public void releaseSavepoint(Savepoint savepoint) {
+		StatementCache statements = transaction.get();
+		if (statements == null) throw new IllegalStateException("Transaction is not started");
+		try {
+			statements.connection.releaseSavepoint(savepoint);
 		} catch (SQLException e) {
 			throw new RuntimeSQLException(e);
 		}
-		connection = null;
+	}
+
+	@FunctionalInterface
+	interface SQLBinder<T> {
+		void bind(PreparedStatement st, T t) throws SQLException;
+	}
+
+	/**
+	 * Runs statement for every object by JDBC batches of {@link #setBatchSize(int)},
+	 * committing after each batch if connection is in autocommit mode.
+	 */
+	<T> void executeBatch(String sql, List<T> objects, SQLBinder<T> binder) {
+		if (objects.isEmpty()) return;
+		withStatements(statements -> {
+			Connection connection = statements.connection;
+			boolean autoCommit = connection.getAutoCommit();
+			if (autoCommit) connection.setAutoCommit(false);
+			try {
+				PreparedStatement st = statements.prepare(sql);
+				int size = 0;
+				for (T object : objects) {
+					binder.bind(st, object);
+					st.addBatch();
+					if (++size % batchSize != 0) continue;
+					st.executeBatch();
+					if (autoCommit) connection.commit();
+				}
+				if (size % batchSize != 0) {
+					st.executeBatch();
+					if (autoCommit) connection.commit();
+				}
+			} catch (SQLException | RuntimeException e) {
+				statements.invalidate(sql);
+				if (autoCommit) {
+					try {
+						connection.rollback();
+					} catch (SQLException ex) {
+						e.addSuppressed(ex);
+					}
+				}
+				throw e;
+			} finally {
+				if (autoCommit) connection.setAutoCommit(true);
+			}
+			return null;
+		});
+	}
+	<R> R execute(String sql, SQLFunction<PreparedStatement, R> action) {
+		return withStatements(statements -> {
+			try {
+				return action.apply(statements.prepare(sql));
+			} catch (SQLException e) {
+				statements.invalidate(sql);
+				throw e;
+			}
+		});
+	}
+	void executeUpdate(String sql) {
+		withStatements(statements -> {
+			try (Statement st = statements.connection.createStatement()) {
+				return st.executeUpdate(sql);
+			}
+		});
+	}
+	static int bind(PreparedStatement st, int index, Object[] placeholders) throws SQLException {
+		for (Object o : placeholders) {
+			st.setObject(++index, convertToDB(o));
+		}
+		return index;
 	}
 
 	@Override
 	public boolean checkIfTableExists(Class<?> table) {
-		try {
+		return withStatements(statements -> {
 			StringBuilder query = new StringBuilder();
 			query.append("SELECT count(*) FROM information_schema.tables");
 			if (table != null) {
-				Table t = table.getAnnotation(Table.class);
-				query.append(" WHERE table_name = '");
-				query.append(t.value());
-				query.append("' AND table_schema = '");
-				query.append(connection.getCatalog());
-				query.append("' LIMIT 1;");
-			}
-            ResultSet rs = this.connection.prepareStatement(query.toString()).executeQuery();
-            if (!rs.next()) return false;
-            return rs.getInt(1) > 0;
-        } catch (SQLException e) {
-            throw new RuntimeSQLException(e);
-        }
+				query.append(" WHERE table_name = ? AND table_schema = ? LIMIT 1;");
+			}
+			try (PreparedStatement st = statements.connection.prepareStatement(query.toString())) {
+				if (table != null) {
+					st.setString(1, validTable(table).value());
+					st.setString(2, statements.connection.getCatalog());
+				}
+				try (ResultSet rs = st.executeQuery()) {
+					if (!rs.next()) return false;
+					return rs.getInt(1) > 0;
+				}
+			}
+		});
 	}
 	
-	int getLimit(Field field, DataType<?> dt) {
-		return ColumnSchema.getLimit(field, dt);
+	String insertQuery(EntityModel<?> model) {
+		return model.query("insert", () -> {
+			StringBuilder query = new StringBuilder();
+			query.append("INSERT INTO `");
+			query.append(model.getTableName());
+			query.append("` ( ");
+			
+			int index = 0;
+			for (EntityColumn column : model.columns) {
+				if (index++>0) query.append(" , ");
+				query.append("`");
+				query.append(column.name);
+				query.append("`");
+			}
+			query.append(" ) VALUES ( ");
+			for (int i = 0; i < index; i++) {
+				if (i>0) query.append(" , ");
+				query.append("?");
+			}
+			query.append(" );");
+			return query.toString();
+		});
+	}
+	String updateQuery(EntityModel<?> model, Where where) {
+		return updateQuery(model, where, null);
+	}
+	/**
+	 * @param changed - which columns to set, null for all
+	 */
+	String updateQuery(EntityModel<?> model, Where where, boolean[] changed) {
+		StringBuilder key = new StringBuilder("update|");
+		if (changed != null) {
+			for (boolean b : changed) key.append(b ? '1' : '0');
+		}
+		key.append('|').append(where.query);
+		return model.query(key.toString(), () -> {
+			StringBuilder query = new StringBuilder();
+			query.append("UPDATE `");
+			query.append(model.getTableName());
+			query.append("` SET ");
+			int index = 0;
+			for (int i = 0; i < model.columns.size(); i++) {
+				if (changed != null && !changed[i]) continue;
+				EntityColumn column = model.columns.get(i);
+				if (index++>0) query.append(" , ");
+				query.append("`");
+				query.append(column.name);
+				query.append("` = ?");
+			}
+			query.append(" WHERE ");
+			query.append(where.query);
+			return query.toString();
+		});
+	}
+	/**
+	 * INSERT ... ON DUPLICATE KEY UPDATE, so MySQL decides by primary key
+	 * @param rowAlias - refer to new values by row alias, VALUES() is deprecated since MySQL 8.0.20
+	 */
+	String upsertQuery(EntityModel<?> model, boolean rowAlias) {
+		return model.query(rowAlias ? "upsert|alias" : "upsert", () -> {
+			StringBuilder query = new StringBuilder(insertQuery(model));
+			query.setLength(query.length()-1);
+			if (rowAlias) query.append(" AS new");
+			query.append(" ON DUPLICATE KEY UPDATE ");
+			int index = 0;
+			for (EntityColumn column : model.columns) {
+				if (column.isPrimary) continue;
+				if (index++>0) query.append(" , ");
+				query.append("`");
+				query.append(column.name);
+				if (rowAlias) query.append("` = new.`").append(column.name).append("`");
+				else query.append("` = VALUES(`").append(column.name).append("`)");
+			}
+			if (index == 0) {
+				String name = model.columns.get(0).name;
+				query.append("`").append(name).append("` = `").append(name).append("`");
+			}
+			query.append(";");
+			return query.toString();
+		});
+	}
+	private boolean rowAlias() {
+		Boolean rowAlias = this.rowAlias;
+		if (rowAlias == null) {
+			rowAlias = withStatements(statements -> supportsRowAlias(statements.connection.getMetaData()));
+			this.rowAlias = rowAlias;
+		}
+		return rowAlias;
+	}
+	/**
+	 * Row alias in INSERT came in MySQL 8.0.19, MariaDB still has only VALUES()
+	 */
+	static boolean supportsRowAlias(DatabaseMetaData meta) throws SQLException {
+		String version = meta.getDatabaseProductVersion();
+		if (version == null || version.contains("MariaDB") || meta.getDatabaseProductName().contains("MariaDB")) return false;
+		int major = meta.getDatabaseMajorVersion(), minor = meta.getDatabaseMinorVersion();
+		if (major != 8) return major > 8;
+		if (minor != 0) return minor > 0;
+		// patch version is only in the version string, e.g. "8.0.33"
+		Matcher matcher = PATCH_VERSION.matcher(version);
+		return matcher.find() && Integer.parseInt(matcher.group(1)) >= 19;
+	}
+	/**
+	 * ON DUPLICATE KEY fires on any unique key, so it's used only when primary key is the only one.
+	 * Otherwise a row that conflicts by other unique column would be overwritten instead of failing the insert.
+	 */
+	static boolean canUpsert(EntityModel<?> model) {
+		if (model.primaryKeys.isEmpty()) return false;
+		for (EntityColumn column : model.columns) {
+			if (column.isUnique && (!column.isPrimary || model.primaryKeys.size() > 1)) return false;
+		}
+		return true;
+	}
+	static int bindColumns(PreparedStatement st, int index, EntityModel<?> model, Object object) throws SQLException {
+		for (EntityColumn column : model.columns) {
+			st.setObject(++index, column.toDB(column.get(object)));
+		}
+		return index;
 	}
 
 	@Override
 	public void insert(Object object) {
-		Table table = validTable(object);
-		
-		StringBuilder query = new StringBuilder();
-		query.append("INSERT INTO `");
-		query.append(table.value());
-		query.append("` ( ");
-		
-		int index = 0;
-		for (Field field : object.getClass().getDeclaredFields()) {
-			Column column = field.getAnnotation(Column.class);
-			if (column==null) continue;
-			if (index++>0) query.append(" , ");
-			query.append("`");
-			query.append(column.value());
-			query.append("`");
-		}
-		query.append(" ) VALUES ( ");
-		for (int i = 0; i < index; i++) {
-			if (i>0) query.append(" , ");
-			query.append("?");
+		EntityModel<?> model = model(object);
+		execute(insertQuery(model), st -> {
+			bindColumns(st, 0, model, object);
+			return st.executeUpdate();
+		});
+		track(model, object);
+	}
+
+	/**
+	 * With dirty tracking only changed columns are written, if where is the object's own primary key.
+	 * By other where the whole row is written, as the snapshot is of the object's row, not of the updated ones.
+	 * Object read by {@link #select(Class, Where, String...)} writes only the columns it was selected with.
+	 */
+	@Override
+	public void update(Object object, Where where) {
+		EntityModel<?> model = model(object);
+		ChangeTracker tracker = this.tracker;
+		Object[] values = ChangeTracker.values(model, object);
+		boolean[] loaded = loadedColumns(object);
+		if (tracker == null || !isOwnRow(model, object, where)) {
+			update(model, where, values, loaded);
+			// the object's row may or may not be among updated ones
+			if (tracker != null) tracker.remove(object);
+			return;
 		}
-		query.append(" );");
-		try {
-			PreparedStatement st = connection.prepareStatement(query.toString());
-			index = 0;
-			for (Field field : object.getClass().getDeclaredFields()) {
-				Column column = field.getAnnotation(Column.class);
-				if (column==null) continue;
-				index++;
-				try {
-					field.setAccessible(true);
-					st.setObject(index, convertToDB(field.get(object)));
-				} catch (Throwable e) {
-					e.printStackTrace();
-				}
+		Object[] snapshot = tracker.get(object);
+		boolean[] changed = ChangeTracker.changed(snapshot, values);
+		if (changed == null) changed = loaded;
+		if (changed != null && !contains(changed, true)) return;
+		update(model, where, values, changed);
+		tracker.put(object, ChangeTracker.merge(snapshot, values, changed));
+	}
+	/**
+	 * @param columns - which columns to set, null for all
+	 */
+	private void update(EntityModel<?> model, Where where, Object[] values, boolean[] columns) {
+		execute(updateQuery(model, where, columns), st -> {
+			int index = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (columns == null || columns[i]) st.setObject(++index, values[i]);
 			}
-			st.executeUpdate();
-		} catch (SQLException e) {
-            throw new RuntimeSQLException(e);
+			bind(st, index, where.placeholders);
+			return st.executeUpdate();
+		});
+	}
+	static boolean isOwnRow(EntityModel<?> model, Object object, Where where) {
+		if (model.primaryKeys.isEmpty() || where == null || !where.query.equals(model.primaryQuery)) return false;
+		Object[] key = model.primaryWhere(object).placeholders;
+		for (int i = 0; i < key.length; i++) {
+			if (!Objects.equals(convertToDB(key[i]), convertToDB(where.placeholders[i]))) return false;
 		}
-	
+		return true;
+	}
+	static boolean contains(boolean[] array, boolean value) {
+		for (boolean b : array) {
+			if (b == value) return true;
+		}
+		return false;
 	}
 
+	/**
+	 * Upserts by primary key only if where is the object's own key,
+	 * otherwise the row found by where is updated, as it may have another key
+	 */
 	@Override
-	public void update(Object object, Where where) {
-		Table table = validTable(object);
-		
-		StringBuilder query = new StringBuilder();
-		query.append("UPDATE `");
-		query.append(table.value());
-		query.append("` SET ");
-		List<Object> placeholders = new ArrayList<>();
-		int index = 0;
-		for (Field field : object.getClass().getDeclaredFields()) {
-			Column column = field.getAnnotation(Column.class);
-			if (column==null) continue;
-			if (index++>0) query.append(" , ");
-			try {
-				field.setAccessible(true);
-				Object a = field.get(object);
-				query.append("`");
-				query.append(column.value());
-				query.append("` = ?");
-				placeholders.add(convertToDB(a));
-			} catch (Throwable e) {
-				e.printStackTrace();
+	public void updateOrInsert(Object object, Where where) {
+		EntityModel<?> model = model(object);
+		if (!canUpsert(model) || !isOwnRow(model, object, where) || projected.get(object) != null) {
+			super.updateOrInsert(object, where);
+			return;
+		}
+		execute(upsertQuery(model, rowAlias()), st -> {
+			bindColumns(st, 0, model, object);
+			return st.executeUpdate();
+		});
+		track(model, object);
+	}
+
+	@Override
+	public void insertAll(Collection<?> objects) {
+		groupByTable(objects).forEach((model, list) -> {
+			executeBatch(insertQuery(model), list, (st, object) -> bindColumns(st, 0, model, object));
+			for (Object object : list) track(model, object);
+		});
+	}
+
+	@Override
+	public void updateAll(Collection<?> objects) {
+		groupByTable(objects).forEach((model, list) -> {
+			list.removeIf(object -> {
+				if (projected.get(object) == null) return false;
+				update(object);
+				return true;
+			});
+			if (list.isEmpty()) return;
+			ChangeTracker tracker = this.tracker;
+			if (tracker != null) {
+				list.removeIf(object -> {
+					Object[] snapshot = tracker.get(object);
+					if (snapshot == null) return false;
+					if (ChangeTracker.isPartial(snapshot)) {
+						update(object);
+						return true;
+					}
+					return Arrays.equals(snapshot, ChangeTracker.values(model, object));
+				});
+				if (list.isEmpty()) return;
+			}
+			executeBatch(updateQuery(model, model.primaryWhere(list.get(0))), list, (st, object) -> {
+				int index = bindColumns(st, 0, model, object);
+				bind(st, index, model.primaryWhere(object).placeholders);
+			});
+			for (Object object : list) track(model, object);
+		});
+	}
+
+	@Override
+	public void updateOrInsertAll(Collection<?> objects) {
+		groupByTable(objects).forEach((model, list) -> {
+			if (!canUpsert(model)) {
+				for (Object object : list) super.updateOrInsert(object, model.primaryWhere(object));
+				return;
 			}
+			list.removeIf(object -> {
+				if (projected.get(object) == null) return false;
+				super.updateOrInsert(object, model.primaryWhere(object));
+				return true;
+			});
+			if (list.isEmpty()) return;
+			executeBatch(upsertQuery(model, rowAlias()), list, (st, object) -> bindColumns(st, 0, model, object));
+			for (Object object : list) track(model, object);
+		});
+	}
+
+	String deleteQuery(EntityModel<?> model, Where where, int limit) {
+		return model.query("delete|" + where.query + "|" + limit, () -> {
+			StringBuilder query = new StringBuilder();
+			query.append("DELETE FROM `");
+			query.append(model.getTableName());
+			query.append("` WHERE ");
+			query.append(where.query);
+			if (limit > 0) {
+				query.append(" LIMIT ");
+				query.append(limit);
+			}
+			return query.toString();
+		});
+	}
+
+	@Override
+	public void delete(Object object) {
+		if (object==null) return;
+		super.delete(object);
+		ChangeTracker tracker = this.tracker;
+		if (tracker != null) tracker.remove(object);
+	}
+	@Override
+	public int delete(Class<?> table, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		int deleted = execute(deleteQuery(model, where, where.limit), st -> {
+			bind(st, 0, where.placeholders);
+			return st.executeUpdate();
+		});
+		if (deleted > 0) forgetSnapshots(table);
+		return deleted;
+	}
+	/**
+	 * Runs DELETE ... LIMIT chunkSize until less than chunkSize rows are deleted.
+	 * Outside of a transaction every chunk is committed on its own, so row locks are held only for one chunk.
+	 */
+	@Override
+	public int delete(Class<?> table, Where where, int chunkSize) {
+		if (chunkSize <= 0) return delete(table, where);
+		EntityModel<?> model = EntityModel.of(table);
+		String sql = deleteQuery(model, where, chunkSize);
+		int deleted = 0;
+		while (true) {
+			int count = execute(sql, st -> {
+				bind(st, 0, where.placeholders);
+				return st.executeUpdate();
+			});
+			deleted += count;
+			if (count > 0) forgetSnapshots(table);
+			if (count < chunkSize) return deleted;
 		}
-		query.append(" WHERE ");
-		query.append(where.query);
-		for (Object o : where.placeholders) {
-			placeholders.add(o);
+	}
+	@Override
+	public void deleteAll(Collection<?> objects) {
+		groupByTable(objects).forEach((model, list) -> {
+			if (model.primaryKeys.isEmpty()) throw new RuntimeException("Table " + model.getTableName() + " has no primary key");
+			executeBatch(deleteQuery(model, model.primaryWhere(list.get(0)), 0), list,
+					(st, object) -> bind(st, 0, model.primaryWhere(object).placeholders));
+			ChangeTracker tracker = this.tracker;
+			if (tracker != null) for (Object object : list) tracker.remove(object);
+		});
+	}
+
+	String updateQuery(Update update) {
+		StringBuilder key = new StringBuilder("modify|");
+		for (Update.Action action : update.actions) {
+			key.append(action.kind.ordinal()).append(action.column).append(',');
+			if (action.kind == Update.Kind.EXPRESSION) key.append(action.value).append(',');
 		}
-		try {
-			PreparedStatement st = connection.prepareStatement(query.toString());
-			index = 0;
-			for (Object o : placeholders) {
-				st.setObject(++index, convertToDB(o));
+		key.append('|');
+		for (Update.Condition condition : update.conditions) {
+			key.append(condition.column).append(condition.expected == null ? "=null," : ",");
+		}
+		key.append('|').append(update.where.query);
+		return update.model.query(key.toString(), () -> {
+			StringBuilder query = new StringBuilder();
+			query.append("UPDATE `");
+			query.append(update.model.getTableName());
+			query.append("` SET ");
+			int index = 0;
+			for (Update.Action action : update.actions) {
+				if (index++>0) query.append(" , ");
+				appendF(query, "`?` = ", action.column);
+				if (action.kind == Update.Kind.SET) query.append("?");
+				else if (action.kind == Update.Kind.INCREMENT) appendF(query, "`?` + ?", action.column);
+				else query.append("(").append(action.value).append(")");
 			}
-			st.executeUpdate();
-		} catch (SQLException e) {
-			throw new RuntimeSQLException(e);
+			query.append(" WHERE ( ");
+			query.append(update.where.query);
+			query.append(" )");
+			for (Update.Condition condition : update.conditions) {
+				appendF(query, " AND `?`", condition.column);
+				query.append(condition.expected == null ? " IS NULL" : " = ?");
+			}
+			return query.toString();
+		});
+	}
+
+	@Override
+	protected boolean supportsExpressions() {
+		return true;
+	}
+	@Override
+	public int execute(Update update) {
+		int changed = execute(updateQuery(update), st -> {
+			int index = 0;
+			for (Update.Action action : update.actions) {
+				if (action.kind == Update.Kind.SET) {
+					st.setObject(++index, update.model.byName.get(action.column).toDB(action.value));
+				}
+				else if (action.kind == Update.Kind.INCREMENT) st.setObject(++index, action.value);
+				else index = bind(st, index, action.placeholders);
+			}
+			index = bind(st, index, update.where.placeholders);
+			for (Update.Condition condition : update.conditions) {
+				if (condition.expected == null) continue;
+				st.setObject(++index, update.model.byName.get(condition.column).toDB(condition.expected));
+			}
+			return st.executeUpdate();
+		});
+		if (changed > 0) forgetSnapshots(update.model.type);
+		return changed;
+	}
+
+	String selectQuery(EntityModel<?> model, Where where) {
+		return selectQuery(model, model.columns, where);
+	}
+	String selectQuery(EntityModel<?> model, List<EntityColumn> columns, Where where) {
+		String key = columns == model.columns ? "select" : "select" + columnList(columns);
+		String condition = where == null ? null : where.query;
+		int limit = where == null ? 0 : where.limit;
+		return model.query(key + "|" + condition + "|" + limit, () -> {
+			StringBuilder query = new StringBuilder();
+			query.append("SELECT ");
+			query.append(columnList(columns));
+			query.append(" FROM `");
+			query.append(model.getTableName());
+			query.append("`");
+			if (condition != null) query.append(" WHERE ").append(condition);
+			if (limit > 0) {
+				query.append(" LIMIT ");
+				query.append(limit);
+			}
+			return query.toString();
+		});
+	}
+	static String columnList(List<EntityColumn> columns) {
+		StringBuilder list = new StringBuilder();
+		for (EntityColumn column : columns) {
+			if (list.length() > 0) list.append(", ");
+			list.append("`");
+			list.append(column.name);
+			list.append("`");
 		}
-	
+		return list.toString();
 	}
 
 	@Override
 	public <T> List<T> select(Class<T> table, Where where) {
-		StringBuilder query = new StringBuilder();
-		query.append("SELECT * FROM `");
-		query.append(validTable(table).value());
-		query.append("` WHERE ");
-		query.append(where.query);
-		if (where.limit > 0) {
-			query.append(" LIMIT ");
-			query.append(where.limit);
+		EntityModel<T> model = EntityModel.of(table);
+		return select(model, model.columns, where);
+	}
+	/**
+	 * Updates of the found objects write only the selected columns, so unselected fields left default
+	 * don't overwrite the stored values. {@link #markDirty(Object)} makes them write all columns again.
+	 */
+	@Override
+	public <T> List<T> select(Class<T> table, Where where, String... columns) {
+		EntityModel<T> model = EntityModel.of(table);
+		List<EntityColumn> projection = model.projection(columns);
+		List<T> list = select(model, projection, where);
+		if (projection != model.columns) {
+			for (T object : list) projected.put(object, ChangeTracker.values(model, projection, object));
 		}
-		try {
-			PreparedStatement st = connection.prepareStatement(query.toString());
-			int index = 0;
-			for (Object o : where.placeholders) {
-				st.setObject(++index, convertToDB(o));
+		return list;
+	}
+	<T> List<T> select(EntityModel<T> model, List<EntityColumn> columns, Where where) {
+		String sql = selectQuery(model, columns, where);
+		return execute(sql, st -> {
+			bind(st, 0, where.placeholders);
+			try (ResultSet result = st.executeQuery()) {
+				List<T> list = new ArrayList<>();
+				int[] indexes = columnIndexes(columns, result);
+				while (result.next()) {
+					T object = generateFromResultSet(model, columns, result, indexes);
+					track(model, columns, object);
+					list.add(object);
+				}
+				return list;
 			}
-			ResultSet result = st.executeQuery();
-			List<T> list = new ArrayList<>();
-			while (result.next()) {
-				list.add(generateFromResultSet(table, result));
-				while(list.contains(null)) list.remove(null);
+		});
+	}
+
+	String selectByKeysQuery(EntityModel<?> model, int size) {
+		return model.query("byKeys|" + size, () -> {
+			StringBuilder query = new StringBuilder();
+			query.append("SELECT ");
+			query.append(columnList(model.columns));
+			query.append(" FROM `");
+			query.append(model.getTableName());
+			query.append("` WHERE ");
+			boolean composite = model.primaryKeys.size() > 1;
+			if (composite) query.append("(");
+			query.append(columnList(model.primaryKeys));
+			query.append(composite ? ") IN (" : " IN (");
+			String tuple = composite ? "(?" + String.join("", Collections.nCopies(model.primaryKeys.size() - 1, ", ?")) + ")" : "?";
+			for (int i = 0; i < size; i++) {
+				if (i > 0) query.append(", ");
+				query.append(tuple);
 			}
-			return list;
-		} catch (SQLException e) {
-			throw new RuntimeSQLException(e);
+			query.append(")");
+			return query.toString();
+		});
+	}
+	/**
+	 * Selects by chunks of {@link #setBatchSize(int)} keys with WHERE pk IN (...), or (pk1, pk2) IN ((...), ...) for composite keys.
+	 * Last chunk is padded with repeated key to a power of two, so only a few statement shapes are prepared.
+	 */
+	@Override
+	public <T> Map<Object, T> selectByKeys(Class<T> table, Collection<?> keys) {
+		EntityModel<T> model = EntityModel.of(table);
+		List<Object[]> values = new ArrayList<>(keys.size());
+		Set<Object> unique = new HashSet<>();
+		for (Object key : keys) {
+			Object[] v = model.keyValues(key);
+			if (unique.add(model.key(v))) values.add(v);
+		}
+		Map<Object, T> found = new LinkedHashMap<>();
+		for (int from = 0; from < values.size(); from += batchSize) {
+			List<Object[]> chunk = values.subList(from, Math.min(from + batchSize, values.size()));
+			int size = chunk.size() == batchSize ? batchSize : Math.min(batchSize, Integer.highestOneBit(chunk.size() * 2 - 1));
+			execute(selectByKeysQuery(model, size), st -> {
+				int index = 0;
+				for (int i = 0; i < size; i++) {
+					index = bind(st, index, chunk.get(Math.min(i, chunk.size() - 1)));
+				}
+				try (ResultSet result = st.executeQuery()) {
+					int[] indexes = columnIndexes(model.columns, result);
+					while (result.next()) {
+						T object = generateFromResultSet(model, model.columns, result, indexes);
+						track(model, object);
+						found.put(model.keyOf(object), object);
+					}
+				}
+				return null;
+			});
 		}
+		return found;
 	}
-	
+
+	String aggregateQuery(EntityModel<?> model, String select, Where where, String groupBy) {
+		String query = where == null ? null : where.query;
+		return model.query("aggregate|" + select + "|" + query + "|" + groupBy, () -> {
+			StringBuilder sql = new StringBuilder();
+			sql.append("SELECT ");
+			sql.append(select);
+			sql.append(" FROM `");
+			sql.append(model.getTableName());
+			sql.append("`");
+			if (query != null) sql.append(" WHERE ").append(query);
+			if (groupBy != null) sql.append(" GROUP BY ").append(groupBy);
+			return sql.toString();
+		});
+	}
+	private Object aggregate(EntityModel<?> model, String select, Where where) {
+		return execute(aggregateQuery(model, select, where, null), st -> {
+			if (where != null) bind(st, 0, where.placeholders);
+			try (ResultSet result = st.executeQuery()) {
+				return result.next() ? result.getObject(1) : null;
+			}
+		});
+	}
+	private static String column(EntityModel<?> model, String column) {
+		return "`" + model.projection(column).get(0).name + "`";
+	}
+
 	@Override
-	public boolean hasOne(Class<?> table, Where where) {
-		StringBuilder query = new StringBuilder();
-		query.append("SELECT * FROM `");
-		query.append(validTable(table).value());
-		query.append("` WHERE ");
-		query.append(where.query);
-		if (where.limit > 0) {
-			query.append(" LIMIT ");
-			query.append(where.limit);
+	public long count(Class<?> table, Where where) {
+		Object count = aggregate(EntityModel.of(table), "COUNT(*)", where);
+		return count == null ? 0 : ((Number) count).longValue();
+	}
+	/**
+	 * MySQL sums integers as DECIMAL, it is returned as Long when it has no fraction
+	 */
+	@Override
+	public Number sum(Class<?> table, String column, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		Object sum = aggregate(model, "SUM(" + column(model, column) + ")", where);
+		if (sum == null) return null;
+		if (sum instanceof BigDecimal) {
+			BigDecimal decimal = (BigDecimal) sum;
+			if (decimal.scale() <= 0 || decimal.stripTrailingZeros().scale() <= 0) {
+				try {
+					return decimal.longValueExact();
+				} catch (ArithmeticException e) {}
+			}
+			return decimal.doubleValue();
 		}
-		try {
-			PreparedStatement st = connection.prepareStatement(query.toString());
+		if (sum instanceof Double || sum instanceof Float) return ((Number) sum).doubleValue();
+		return ((Number) sum).longValue();
+	}
+	@Override
+	@SuppressWarnings("unchecked")
+	public <V> V min(Class<?> table, String column, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		return (V) model.projection(column).get(0).fromDB(aggregate(model, "MIN(" + column(model, column) + ")", where));
+	}
+	@Override
+	@SuppressWarnings("unchecked")
+	public <V> V max(Class<?> table, String column, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		return (V) model.projection(column).get(0).fromDB(aggregate(model, "MAX(" + column(model, column) + ")", where));
+	}
+	@Override
+	public Map<Object, Long> countBy(Class<?> table, String column, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		EntityColumn c = model.projection(column).get(0);
+		String name = column(model, column);
+		return execute(aggregateQuery(model, name + ", COUNT(*)", where, name), st -> {
+			if (where != null) bind(st, 0, where.placeholders);
+			try (ResultSet result = st.executeQuery()) {
+				Map<Object, Long> counts = new LinkedHashMap<>();
+				while (result.next()) counts.put(c.fromDB(result.getObject(1)), result.getLong(2));
+				return counts;
+			}
+		});
+	}
+
+	/**
+	 * Seek predicate of rows after the cursor: (a &gt; ?) OR (a = ? AND b &gt; ?) OR ..., with &lt; for descending columns.
+	 * First column is also bound alone (a &gt;= ?), so the database can start at it in index.
+	 */
+	String pageQuery(PageRequest<?> request, boolean after) {
+		EntityModel<?> model = request.model;
+		List<PageRequest.Order> ordering = request.ordering();
+		String where = request.where == null ? null : request.where.query;
+		return model.query("page|" + request.shape() + "|" + where + "|" + after + "|" + request.size, () -> {
+			StringBuilder query = new StringBuilder();
+			query.append("SELECT ");
+			query.append(columnList(model.columns));
+			query.append(" FROM `");
+			query.append(model.getTableName());
+			query.append("`");
+			if (where != null) query.append(" WHERE ( ").append(where).append(" )");
+			if (after) {
+				query.append(where == null ? " WHERE " : " AND ");
+				PageRequest.Order first = ordering.get(0);
+				appendF(query, "`?` ", first.column.name);
+				query.append(first.descending ? "<= ?" : ">= ?");
+				query.append(" AND ( ");
+				for (int i = 0; i < ordering.size(); i++) {
+					if (i > 0) query.append(" OR ");
+					query.append("(");
+					for (int j = 0; j < i; j++) appendF(query, "`?` = ? AND ", ordering.get(j).column.name);
+					appendF(query, "`?` ", ordering.get(i).column.name);
+					query.append(ordering.get(i).descending ? "< ?" : "> ?");
+					query.append(")");
+				}
+				query.append(" )");
+			}
+			query.append(" ORDER BY ");
+			for (int i = 0; i < ordering.size(); i++) {
+				if (i > 0) query.append(", ");
+				appendF(query, "`?`", ordering.get(i).column.name);
+				if (ordering.get(i).descending) query.append(" DESC");
+			}
+			query.append(" LIMIT ");
+			query.append(request.size + 1);
+			return query.toString();
+		});
+	}
+	@Override
+	public <T> Page<T> fetch(PageRequest<T> request) {
+		EntityModel<T> model = request.model;
+		Object[] after = request.cursorValues();
+		return execute(pageQuery(request, after != null), st -> {
 			int index = 0;
-			for (Object o : where.placeholders) {
-				st.setObject(++index, convertToDB(o));
+			if (request.where != null) index = bind(st, index, request.where.placeholders);
+			if (after != null) {
+				st.setObject(++index, after[0]);
+				for (int i = 0; i < after.length; i++) {
+					for (int j = 0; j <= i; j++) st.setObject(++index, after[j]);
+				}
 			}
-			ResultSet result = st.executeQuery();
-			return result.next();
-		} catch (SQLException e) {
-			throw new RuntimeSQLException(e);
+			try (ResultSet result = st.executeQuery()) {
+				List<T> rows = new ArrayList<>(request.size + 1);
+				int[] indexes = columnIndexes(model.columns, result);
+				while (result.next()) {
+					T object = generateFromResultSet(model, model.columns, result, indexes);
+					track(model, object);
+					rows.add(object);
+				}
+				return request.page(rows);
+			}
+		});
+	}
+
+	/**
+	 * Reads rows by chunks of {@link #setFetchSize(int)} or {@link #setBatchSize(int)} in primary key order, seeking past the last row of previous chunk.
+	 * Connection is released before action is called, so action may use this database, e.g. delete the rows it gets.
+	 * <p>
+	 * Rows of a table without primary key are streamed one by one while the connection is held,
+	 * so action can't use this database then.
+	 * @param where - null for every row
+	 */
+	@Override
+	public <T> void forEach(Class<T> table, Where where, Consumer<? super T> action) {
+		EntityModel<T> model = EntityModel.of(table);
+		if (model.primaryKeys.isEmpty()) {
+			stream(model, where, action);
+			return;
+		}
+		int left = where != null && where.limit > 0 ? where.limit : Integer.MAX_VALUE;
+		int size = fetchSize > 0 ? fetchSize : batchSize;
+		PageRequest<T> request = page(table).where(where).size(Math.min(size, left));
+		while (true) {
+			Page<T> page = fetch(request);
+			for (T object : page.getItems()) {
+				if (left-- <= 0) return;
+				action.accept(object);
+			}
+			if (!page.hasNext() || left <= 0) return;
+			request.after(page.getNextCursor());
 		}
 	}
+	private <T> void stream(EntityModel<T> model, Where where, Consumer<? super T> action) {
+		String sql = selectQuery(model, where);
+		withStatements(statements -> {
+			try (PreparedStatement st = statements.connection.prepareStatement(sql,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+				st.setFetchSize(fetchSize);
+				if (where != null) bind(st, 0, where.placeholders);
+				try (ResultSet result = st.executeQuery()) {
+					int[] indexes = columnIndexes(model.columns, result);
+					streaming.set(Boolean.TRUE);
+					try {
+						while (result.next()) {
+							T object = generateFromResultSet(model, model.columns, result, indexes);
+							track(model, object);
+							action.accept(object);
+						}
+					} finally {
+						streaming.remove();
+					}
+				}
+			}
+			return null;
+		});
+	}
+	
+	@Override
+	public boolean hasOne(Class<?> table, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		String sql = model.query("hasOne|" + where.query, () -> {
+			StringBuilder query = new StringBuilder();
+			query.append("SELECT 1 FROM `");
+			query.append(model.getTableName());
+			query.append("` WHERE ");
+			query.append(where.query);
+			query.append(" LIMIT 1");
+			return query.toString();
+		});
+		return execute(sql, st -> {
+			bind(st, 0, where.placeholders);
+			try (ResultSet result = st.executeQuery()) {
+				return result.next();
+			}
+		});
+	}
 	
 
 
 	static <T> T generateFromResultSet(Class<T> clazz, ResultSet result) {
+		EntityModel<T> model = EntityModel.of(clazz);
 		try {
-			Constructor<T> constr = clazz.getConstructor();
-			constr.setAccessible(true);
-			T object = constr.newInstance();
-			for (Field field : clazz.getDeclaredFields()) {
-				Column column = field.getAnnotation(Column.class);
-				if (column==null) continue;
-				field.setAccessible(true);
-				Object value = result.getObject(column.value());
-				value = convertFromDB(field.getType(), value);
-				field.set(object, value);
+			return generateFromResultSet(model, model.columns, result, columnIndexes(model.columns, result));
+		} catch (SQLException e) {
+			throw new RuntimeSQLException(e);
+		}
+	}
+	static int[] columnIndexes(List<EntityColumn> columns, ResultSet result) throws SQLException {
+		int[] indexes = new int[columns.size()];
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = result.findColumn(columns.get(i).name);
+		}
+		return indexes;
+	}
+	static <T> T generateFromResultSet(EntityModel<T> model, List<EntityColumn> columns, ResultSet result, int[] indexes) {
+		try {
+			T object = model.newInstance();
+			for (int i = 0; i < indexes.length; i++) {
+				EntityColumn column = columns.get(i);
+				Object value = result.getObject(indexes[i]);
+				column.set(object, column.fromDB(value));
 			}
 			return object;
 		} catch (Throwable e) {
@@ -228,70 +1165,149 @@ public class MatSQL extends Database {
 
 	@Override
 	public void createTable(Class<?> table) {
+		EntityModel<?> model = EntityModel.of(table);
 		StringBuilder query = new StringBuilder();
 		query.append("CREATE TABLE `");
-		query.append(table.getAnnotation(Table.class).value());
+		query.append(model.getTableName());
 		query.append("` ( ");
 		int index = 0;
-		for (Field field : table.getDeclaredFields()) {
-			Column column = field.getAnnotation(Column.class);
-			if (column==null) continue;
+		for (EntityColumn column : model.columns) {
 			if (index++>0) query.append(" , ");
 			query.append("`");
-			query.append(column.value());
+			query.append(column.name);
 			query.append("` ");
-			DataType<?> datatype = DataConverter.getConverter(field.getType());
-			if (datatype==null) {
-				if (field.getType().isAssignableFrom(List.class)) {
-					datatype = DataConverter.getConverter(List.class);
-				}
-				throw new RuntimeException("Can't get converter for " + field.getType());
-			}
-			int limit = getLimit(field, datatype);
-			query.append(datatype.getSqlType(limit));
-			if (limit > 0) {
-				query.append("(");
-				query.append(limit);
-				query.append(")");
-			}
+			query.append(column.getSqlType());
 			query.append(" ");
-			if (field.getAnnotation(Nullable.class) != null) query.append("NULL");
+			if (column.isNullable) query.append("NULL");
 			else query.append("NOT NULL");
 		}
-		query.append(" );");
-		try {
-			this.connection.prepareStatement(query.toString()).executeUpdate();
-		} catch (SQLException e) {
-            throw new RuntimeSQLException(e);
+		for (EntityIndex entityIndex : model.indexes) {
+			appendF(query, " , INDEX `?` (?)", entityIndex.name, entityIndex.definition());
 		}
+		query.append(" );");
+		executeUpdate(query.toString());
 		updateTable(table);
 	}
 	
 	@Override
 	public void updateTable(Class<?> table) {
+		String name = validTable(table).value();
+		List<ColumnSchema> columnsNow = withStatements(statements -> readColumns(statements, name))
+				.getOrDefault(name, Collections.emptyList());
+		Map<String, String> indexesNow = withStatements(statements -> readIndexes(statements, name))
+				.getOrDefault(name, Collections.emptyMap());
+		String alter = alterQuery(table, columnsNow, indexesNow);
+		if (alter != null) executeUpdate(alter);
+	}
+
+	/**
+	 * Checks all tables by three schema queries, then creates missing tables
+	 * and alters changed ones concurrently on {@link #getAsyncExecutor()}.
+	 */
+	@Override
+	public void createOrUpdateTables(Class<?>... tables) {
+		Set<String> existing = withStatements(statements -> {
+			Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+			try (PreparedStatement st = statements.connection.prepareStatement("SELECT TABLE_NAME "
+					+ "FROM information_schema.tables WHERE table_schema = DATABASE()");
+					ResultSet result = st.executeQuery()) {
+				while (result.next()) names.add(result.getString(1));
+			}
+			return names;
+		});
+		Map<String, List<ColumnSchema>> columns = withStatements(statements -> readColumns(statements, null));
+		Map<String, Map<String, String>> indexes = withStatements(statements -> readIndexes(statements, null));
+
+		// with a single connection tasks would only wait for each other, and may time out on borrow
+		Executor executor = pool != null && pool.maxSize > 1 ? getAsyncExecutor() : Runnable::run;
+		List<CompletableFuture<Void>> tasks = new ArrayList<>();
+		for (Class<?> table : tables) {
+			String name = validTable(table).value();
+			if (!existing.contains(name)) {
+				tasks.add(CompletableFuture.runAsync(() -> createTable(table), executor));
+				continue;
+			}
+			String alter = alterQuery(table, columns.getOrDefault(name, Collections.emptyList()),
+					indexes.getOrDefault(name, Collections.emptyMap()));
+			if (alter == null) continue;
+			tasks.add(CompletableFuture.runAsync(() -> executeUpdate(alter), executor));
+		}
+		try {
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Table names are compared case-insensitively, like MySQL does with lower_case_table_names
+	 * @param table - table name, or null for all tables of current schema
+	 */
+	static Map<String, List<ColumnSchema>> readColumns(StatementCache statements, String table) throws SQLException {
+		Map<String, List<ColumnSchema>> columns = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		try (PreparedStatement st = statements.connection.prepareStatement("SELECT * FROM INFORMATION_SCHEMA.COLUMNS "
+				+ "WHERE TABLE_SCHEMA = DATABASE()" + (table == null ? "" : " AND TABLE_NAME = ?")
+				+ " ORDER BY TABLE_NAME, ORDINAL_POSITION")) {
+			if (table != null) st.setString(1, table);
+			try (ResultSet result = st.executeQuery()) {
+				while (result.next()) {
+					columns.computeIfAbsent(result.getString("TABLE_NAME"), k -> new ArrayList<>()).add(new ColumnSchema(result));
+				}
+			}
+		}
+		return columns;
+	}
+	/**
+	 * Table and index names are compared case-insensitively, like MySQL does
+	 * @param table - table name, or null for all tables of current schema
+	 * @return index definitions ({@link EntityIndex#definition()}) by index name, by table name
+	 */
+	static Map<String, Map<String, String>> readIndexes(StatementCache statements, String table) throws SQLException {
+		Map<String, Map<String, StringBuilder>> indexes = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		try (PreparedStatement st = statements.connection.prepareStatement("SELECT TABLE_NAME, INDEX_NAME, COLUMN_NAME, SUB_PART "
+				+ "FROM INFORMATION_SCHEMA.STATISTICS WHERE TABLE_SCHEMA = DATABASE()" + (table == null ? "" : " AND TABLE_NAME = ?")
+				+ " ORDER BY TABLE_NAME, INDEX_NAME, SEQ_IN_INDEX")) {
+			if (table != null) st.setString(1, table);
+			try (ResultSet result = st.executeQuery()) {
+				while (result.next()) {
+					StringBuilder definition = indexes.computeIfAbsent(result.getString(1), k -> new LinkedHashMap<>())
+							.computeIfAbsent(result.getString(2), k -> new StringBuilder());
+					if (definition.length() > 0) definition.append(", ");
+					definition.append("`").append(result.getString(3)).append("`");
+					int length = result.getInt(4);
+					if (!result.wasNull() && length > 0) definition.append("(").append(length).append(")");
+				}
+			}
+		}
+		Map<String, Map<String, String>> definitions = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		indexes.forEach((name, map) -> {
+			Map<String, String> tableIndexes = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			map.forEach((index, definition) -> tableIndexes.put(index, definition.toString()));
+			definitions.put(name, tableIndexes);
+		});
+		return definitions;
+	}
+
+	/**
+	 * @return ALTER TABLE query that brings table to the entity, or null if nothing to change
+	 */
+	String alterQuery(Class<?> table, List<ColumnSchema> columnsNow, Map<String, String> indexesNow) {
 		StringBuilder query = new StringBuilder();
 		appendF(query, "ALTER TABLE `?`", validTable(table).value());
 		
-		List<ColumnSchema> columnsNow = new ArrayList<>();
-		try {
-			PreparedStatement st = connection.prepareStatement("SELECT * FROM INFORMATION_SCHEMA.COLUMNS "
-					+ "WHERE TABLE_NAME = '"+validTable(table).value()+"'");
-			ResultSet result = st.executeQuery();
-			while (result.next()) columnsNow.add(new ColumnSchema(result));
-		} catch (SQLException e) {
-			throw new RuntimeSQLException(e);
-		}
 		int index = 0;
 		StringBuilder primaryKeys = null;
-		String lastColumn = columnsNow.get(columnsNow.size()-1).name;
-		for (Field field : table.getDeclaredFields()) {
-			ColumnSchema ocs = new ColumnSchema(field);
+		String lastColumn = columnsNow.isEmpty() ? null : columnsNow.get(columnsNow.size()-1).name;
+		for (EntityColumn column : EntityModel.of(table).columns) {
+			ColumnSchema ocs = new ColumnSchema(column);
 			if (columnsNow.contains(ocs)) continue;
 			ColumnSchema dbcs = get(columnsNow, ocs.name);
 			if (dbcs==null) {
 				appendF(query, " ADD `?` ?", ocs.name,  ocs.type);
 				query.append(ocs.isNullable ? " NULL" : " NOT NULL");
-				appendF(query, " AFTER `?`,", lastColumn);
+				if (lastColumn != null) appendF(query, " AFTER `?`", lastColumn);
+				query.append(",");
 				lastColumn = ocs.name;
 				index++;
 			}
@@ -315,16 +1331,28 @@ public class MatSQL extends Database {
 			}
 		}
 		
-		if (index <= 0) return;
-		if (primaryKeys!=null) appendF(query, " ADD PRIMARY KEY (?),", primaryKeys);
-		try {
-			String s = query.toString();
-			s = s.substring(0, s.length()-1);
-			System.out.println(index + " - " + s);
-			this.connection.prepareStatement(s).executeUpdate();
-		} catch (SQLException e) {
-			throw new RuntimeSQLException(e);
+		Set<String> declared = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+		for (EntityIndex entityIndex : EntityModel.of(table).indexes) {
+			declared.add(entityIndex.name);
+			String definition = entityIndex.definition();
+			String now = indexesNow.get(entityIndex.name);
+			if (definition.equals(now)) continue;
+			if (now != null) appendF(query, " DROP INDEX `?`,", entityIndex.name);
+			appendF(query, " ADD INDEX `?` (?),", entityIndex.name, definition);
+			index++;
 		}
+		// indexes named by default are ours, so ones no longer declared are dropped
+		for (String name : indexesNow.keySet()) {
+			if (!name.regionMatches(true, 0, "idx_", 0, 4) || declared.contains(name)) continue;
+			appendF(query, " DROP INDEX `?`,", name);
+			index++;
+		}
+
+		if (index <= 0) return null;
+		if (primaryKeys!=null) appendF(query, " ADD PRIMARY KEY (?),", primaryKeys);
+		String s = query.toString();
+		s = s.substring(0, s.length()-1);
+		return s;
 	}
 
 	private ColumnSchema get(List<ColumnSchema> list, String name) {
@@ -339,19 +1367,6 @@ public class MatSQL extends Database {
 		}
 		sb.append(str);
 	}
-//	public void alterTalbe(Class<?> table, String query) {
-//		try {
-//			StringBuilder sb = new StringBuilder();
-//			sb.append("ALTER TABLE `");
-//			sb.append(validTable(table).value());
-//			sb.append("` ");
-//			sb.append(query);
-//			this.connection.prepareStatement(sb.toString()).executeUpdate();
-//		} catch (SQLException e) {
-//			// TODO Auto-generated catch block
-//			e.printStackTrace();
-//		}
-//	}
 //	private boolean updatePrimaryConstraint(Class<?> table) {
 //		Table t = validTable(table);
 //		PrimaryConstraint pc = table.getAnnotation(PrimaryConstraint.class);
@@ -2,13 +2,24 @@ package com.klapeks.sql;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
@@ -16,27 +27,242 @@ import org.bukkit.configuration.file.YamlConfiguration;
 
 import com.klapeks.db.Cfg;
 import com.klapeks.libs.bukkit.Main;
-import com.klapeks.sql.anno.Column;
 import com.klapeks.sql.anno.IfYaml;
 import com.klapeks.sql.anno.Table;
 
 public class MatYML extends Database {
 	
-	Map<Class<?>, FileConfiguration> tables = new HashMap<>();
+	Map<Class<?>, FileConfiguration> tables = new ConcurrentHashMap<>();
+	Map<Class<?>, KeyIndex> indexes = new ConcurrentHashMap<>();
+
+	/** How many writes each table got since it was saved */
+	private final Map<Class<?>, Integer> dirty = new ConcurrentHashMap<>();
+	private final Object saveLock = new Object();
+	private volatile long saveInterval = 1000;
+	private volatile int maxDirtyWrites = 1000;
+	private ScheduledExecutorService saver;
+
+	public enum JournalSync {
+		/** Every change is forced to disk before write returns */
+		ALWAYS,
+		/** Changes are forced to disk by the saver every save interval */
+		INTERVAL,
+		/** Left to the operating system */
+		NEVER
+	}
+	private final Map<Class<?>, Journal> journals = new ConcurrentHashMap<>();
+	/** Compaction of a table runs under its lock, so an older snapshot can't replace a newer one */
+	private final Map<Class<?>, Object> compactLocks = new ConcurrentHashMap<>();
+	private volatile JournalSync journalSync;
+	private volatile long compactSize = 4 * 1024 * 1024;
+
+	/**
+	 * Decoded rows of a table by their key path, so lookups don't parse the YAML tree.
+	 * Objects in it are never handed out, only their copies.
+	 */
+	static class KeyIndex {
+		private final Map<String, Object> rows = new HashMap<>();
+		private final NavigableMap<String, Object> sorted = new TreeMap<>();
+
+		synchronized void put(String key, Object row) {
+			rows.put(key, row);
+			sorted.put(key, row);
+		}
+		/**
+		 * Removes the row at key and every row under it
+		 */
+		synchronized void remove(String key) {
+			if (key.isEmpty()) {
+				rows.clear();
+				sorted.clear();
+				return;
+			}
+			rows.remove(key);
+			sorted.remove(key);
+			Map<String, Object> under = under(key);
+			rows.keySet().removeAll(under.keySet());
+			under.clear();
+		}
+		private Map<String, Object> under(String key) {
+			if (key.isEmpty()) return sorted;
+			// '/' goes right after '.', so this is every key starting with "key."
+			return sorted.subMap(key + ".", true, key + "/", false);
+		}
+		/**
+		 * @return rows at key or under it, at most limit if it is positive
+		 */
+		synchronized List<Object> find(String key, int limit) {
+			List<Object> found = new ArrayList<>();
+			Object row = rows.get(key);
+			if (row != null) {
+				found.add(row);
+				return found;
+			}
+			for (Object o : under(key).values()) {
+				if (limit > 0 && found.size() >= limit) break;
+				found.add(o);
+			}
+			return found;
+		}
+		synchronized boolean contains(String key) {
+			return rows.containsKey(key) || !under(key).isEmpty();
+		}
+	}
 
 	@Override
 	public void connect(String path, Properties properties) {}
 
 	@Override
 	public void disconnect() {
+		stopSaver();
+		dirty.clear();
 		tables.forEach((table, cfg) -> {
+			Journal journal = journals.remove(table);
+			if (journal != null) closeQuietly(journal);
+			if (write(table, cfg) && journal != null) deleteJournal(table);
+		});
+		tables.clear();
+		indexes.clear();
+	}
+
+	/**
+	 * Journal mode: every change is appended to table's log (&lt;table&gt;.yml.log) instead of rewriting the whole file,
+	 * and the log is compacted into the .yml file when it grows over compactSize bytes.
+	 * Logs left by a crash are replayed by {@link #createTable(Class)} even if journal mode is off.
+	 * @param sync - when changes are forced to disk, null to turn journal mode off
+	 */
+	public synchronized void setJournal(JournalSync sync, long compactSize) {
+		this.compactSize = compactSize;
+		if (sync == journalSync) return;
+		this.journalSync = sync;
+		for (Class<?> table : tables.keySet()) {
+			FileConfiguration cfg = tables.get(table);
+			Journal journal = journals.remove(table);
+			if (journal != null) {
+				closeQuietly(journal);
+				if (write(table, cfg)) deleteJournal(table);
+				else dirty.merge(table, 1, Integer::sum);
+			}
+			if (sync == null) continue;
+			flush(table);
+			openJournal(table);
+		}
+		if (sync != null && saveInterval > 0) saver();
+	}
+	private void openJournal(Class<?> table) {
+		try {
+			journals.put(table, new Journal(getJournalPath(table), journalSync));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	private void deleteJournal(Class<?> table) {
+		try {
+			Journal.delete(getJournalPath(table));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	private static void closeQuietly(Journal journal) {
+		try {
+			journal.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	static Path getJournalPath(Class<?> table) {
+		File file = getTablePath(table);
+		return file.toPath().resolveSibling(file.getName() + ".log");
+	}
+
+	/**
+	 * Tables are saved in background every saveInterval milliseconds after they were changed,
+	 * or right away after maxDirtyWrites changes. 0 or less to save after every change on calling thread.
+	 */
+	public synchronized void setSaveInterval(long saveInterval, int maxDirtyWrites) {
+		this.saveInterval = saveInterval;
+		this.maxDirtyWrites = maxDirtyWrites;
+		stopSaver();
+		if (saveInterval <= 0) flush();
+		// tables changed before are saved by the new saver, not by the next write
+		else if (!dirty.isEmpty() || !journals.isEmpty()) saver();
+	}
+	private synchronized ScheduledExecutorService saver() {
+		if (saver != null) return saver;
+		saver = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "KlapeksSQL yml-saver");
+			thread.setDaemon(true);
+			return thread;
+		});
+		saver.scheduleWithFixedDelay(this::tick, saveInterval, saveInterval, TimeUnit.MILLISECONDS);
+		return saver;
+	}
+	private synchronized void stopSaver() {
+		if (saver == null) return;
+		saver.shutdown();
+		try {
+			saver.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		saver = null;
+	}
+
+	private void tick() {
+		try {
+			flush();
+			for (Class<?> table : journals.keySet()) compact(table, false);
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+	}
+	/**
+	 * Saves every changed table now, in journal mode forces logs to disk
+	 */
+	public void flush() {
+		for (Class<?> table : dirty.keySet()) flush(table);
+		for (Journal journal : journals.values()) {
 			try {
-				cfg.save(getTablePath(table));
+				journal.sync();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-		});
-		tables.clear();
+		}
+	}
+	/**
+	 * Writes the table into .yml file and drops the log it includes.
+	 * The log is moved aside under table's lock, so writers are blocked only while the table is serialized.
+	 * Compactions of one table run one at a time.
+	 */
+	private void compact(Class<?> table, boolean force) {
+		Journal journal = journals.get(table);
+		FileConfiguration cfg = tables.get(table);
+		if (journal == null || cfg == null) return;
+		if (!force && journal.size() < compactSize) return;
+		synchronized (compactLocks.computeIfAbsent(table, t -> new Object())) {
+			if (!force && journal.size() < compactSize) return;
+			String data;
+			synchronized (cfg) {
+				data = cfg.saveToString();
+				try {
+					journal.rotate();
+				} catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+			}
+			if (!write(table, data)) return;
+			try {
+				journal.dropRotated();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	public void flush(Class<?> table) {
+		if (dirty.remove(table) == null) return;
+		FileConfiguration cfg = tables.get(table);
+		if (cfg != null && !write(table, cfg)) dirty.merge(table, 1, Integer::sum);
 	}
 	
 
@@ -57,7 +283,110 @@ public class MatYML extends Database {
 			}
 		}
 		FileConfiguration cfg = YamlConfiguration.loadConfiguration(file);
+		replay(table, cfg);
 		tables.put(table, cfg);
+		indexes.put(table, buildIndex(EntityModel.of(table), cfg));
+		if (journalSync != null) openJournal(table);
+	}
+	/**
+	 * Applies log left since the last compaction and writes the result into .yml file
+	 */
+	private void replay(Class<?> table, FileConfiguration cfg) {
+		Path log = getJournalPath(table);
+		if (!Files.exists(log) && !Files.exists(Journal.rotated(log))) return;
+		int replayed;
+		try {
+			replayed = Journal.replay(log, new Journal.Replayer() {
+				@Override
+				public void put(String key, Map<String, Object> values) {
+					values.forEach((column, value) -> cfg.set(key+"."+column, value));
+				}
+				@Override
+				public void delete(String key) {
+					removeSection(cfg, key);
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if (replayed == 0 || write(table, cfg.saveToString())) deleteJournal(table);
+	}
+	private KeyIndex buildIndex(EntityModel<?> model, FileConfiguration cfg) {
+		KeyIndex index = new KeyIndex();
+		List<ConfigurationSection> rows = new ArrayList<>();
+		leaves(cfg, rows);
+		for (ConfigurationSection row : rows) {
+			try {
+				reindex(index, model, row);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		return index;
+	}
+	/**
+	 * Row that can't be read is dropped from the index, so lookups don't return its old state
+	 */
+	private void reindex(KeyIndex index, EntityModel<?> model, ConfigurationSection row) {
+		String key = row.getCurrentPath();
+		try {
+			index.put(key, generateFromSection(model, row));
+		} catch (RuntimeException e) {
+			index.remove(key);
+			throw new RuntimeException("Can't read row " + key + " of table " + model.getTableName(), e);
+		}
+	}
+	private KeyIndex getIndex(EntityModel<?> model) {
+		KeyIndex index = indexes.get(model.type);
+		if (index == null) throw new RuntimeException("Unknown table: " + model.getTableName());
+		return index;
+	}
+
+	@Override
+	public void updateTable(Class<?> table) {}
+
+	/**
+	 * Remembers rows under the key as they are now, if the current thread is in a transaction,
+	 * to put them back on rollback. Called under the table's lock before it changes.
+	 */
+	private void changing(EntityModel<?> model, FileConfiguration cfg, String key) {
+		if (!undo.isActive()) return;
+		List<ConfigurationSection> rows = new ArrayList<>();
+		leaves(key.isEmpty() ? cfg : cfg.getConfigurationSection(key), rows);
+		Map<String, Map<String, Object>> previous = new LinkedHashMap<>();
+		for (ConfigurationSection row : rows) {
+			Map<String, Object> values = new LinkedHashMap<>();
+			for (String column : row.getKeys(false)) {
+				Object value = row.get(column);
+				values.put(column, value instanceof List<?> ? new ArrayList<>((List<?>) value) : value);
+			}
+			previous.put(row.getCurrentPath(), values);
+		}
+		undo.record(() -> restore(model, key, previous));
+	}
+	private void restore(EntityModel<?> model, String key, Map<String, Map<String, Object>> previous) {
+		FileConfiguration cfg = getTable(model);
+		RuntimeException error = null;
+		try {
+			synchronized (cfg) {
+				remove(model, cfg, key);
+				for (Map.Entry<String, Map<String, Object>> row : previous.entrySet()) {
+					row.getValue().forEach((column, value) -> cfg.set(row.getKey()+"."+column, value));
+					ConfigurationSection section = cfg.getConfigurationSection(row.getKey());
+					log(model, section);
+					try {
+						reindex(getIndex(model), model, section);
+					} catch (RuntimeException e) {
+						if (error == null) error = e;
+						else error.addSuppressed(e);
+					}
+				}
+			}
+		} finally {
+			save(model.type, cfg);
+		}
+		if (error != null) throw error;
 	}
 
 	@Override
@@ -67,75 +396,272 @@ public class MatYML extends Database {
 
 	@Override
 	public void update(Object object, Where where) {
-		Table table = validTable(object);
-		FileConfiguration cfg = tables.get(object.getClass());
-		if (cfg == null) throw new RuntimeException("Unknown table: " + table.value());
-		String key = parseWhere(where);
-		for (Field field : object.getClass().getDeclaredFields()) {
-			Column column = field.getAnnotation(Column.class);
-			if (column==null) continue;
-			field.setAccessible(true);
+		EntityModel<?> model = model(object);
+		FileConfiguration cfg = getTable(model);
+		try {
+			synchronized (cfg) {
+				String key = parseWhere(where);
+				changing(model, cfg, key);
+				set(cfg, model, object, key);
+			}
+		} finally {
+			save(model.type, cfg);
+		}
+	}
+
+	@Override
+	public void insertAll(Collection<?> objects) {
+		updateAll(objects);
+	}
+	@Override
+	public void updateOrInsertAll(Collection<?> objects) {
+		updateAll(objects);
+	}
+	@Override
+	public void updateAll(Collection<?> objects) {
+		groupByTable(objects).forEach((model, list) -> {
+			FileConfiguration cfg = getTable(model);
 			try {
-				Object a = field.get(object);
-				if (a instanceof List<?>) {
-					cfg.set(key+"."+column.value(), a);
+				synchronized (cfg) {
+					for (Object object : list) {
+						String key = parseWhere(model.primaryWhere(object));
+						changing(model, cfg, key);
+						set(cfg, model, object, key);
+					}
 				}
-				else cfg.set(key+"."+column.value(), convertToDB(a));
-			} catch (Throwable e) {
-				e.printStackTrace();
+			} finally {
+				save(model.type, cfg);
 			}
+		});
+	}
+
+	@Override
+	public int delete(Class<?> table, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		FileConfiguration cfg = getTable(model);
+		int deleted;
+		synchronized (cfg) {
+			String key = parseWhere(where);
+			changing(model, cfg, key);
+			deleted = remove(model, cfg, key);
+		}
+		if (deleted > 0) save(table, cfg);
+		return deleted;
+	}
+	@Override
+	public void deleteAll(Collection<?> objects) {
+		groupByTable(objects).forEach((model, list) -> {
+			FileConfiguration cfg = getTable(model);
+			int deleted = 0;
+			synchronized (cfg) {
+				for (Object object : list) {
+					String key = parseWhere(model.primaryWhere(object));
+					changing(model, cfg, key);
+					deleted += remove(model, cfg, key);
+				}
+			}
+			if (deleted > 0) save(model.type, cfg);
+		});
+	}
+	/**
+	 * Removes every row under the key, and parent sections left empty by it
+	 * @return how many rows were removed
+	 */
+	private int remove(EntityModel<?> model, FileConfiguration cfg, String key) {
+		getIndex(model).remove(key);
+		int removed = removeSection(cfg, key);
+		Journal journal = journals.get(model.type);
+		if (removed > 0 && journal != null) {
+			try {
+				journal.delete(key);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return removed;
+	}
+	private static int removeSection(FileConfiguration cfg, String key) {
+		List<ConfigurationSection> rows = new ArrayList<>();
+		if (key.isEmpty()) {
+			leaves(cfg, rows);
+			for (String k : cfg.getKeys(false)) cfg.set(k, null);
+			return rows.size();
+		}
+		leaves(cfg.getConfigurationSection(key), rows);
+		if (rows.isEmpty()) return 0;
+		cfg.set(key, null);
+		for (int i = key.lastIndexOf('.'); i > 0; i = key.lastIndexOf('.')) {
+			key = key.substring(0, i);
+			ConfigurationSection parent = cfg.getConfigurationSection(key);
+			if (parent == null || !parent.getKeys(false).isEmpty()) break;
+			cfg.set(key, null);
+		}
+		return rows.size();
+	}
+
+	private FileConfiguration getTable(EntityModel<?> model) {
+		FileConfiguration cfg = tables.get(model.type);
+		if (cfg == null) throw new RuntimeException("Unknown table: " + model.getTableName());
+		return cfg;
+	}
+	private void set(FileConfiguration cfg, EntityModel<?> model, Object object, String key) {
+		for (EntityColumn column : model.columns) {
+			Object a = column.get(object);
+			if (a instanceof List<?>) {
+				cfg.set(key+"."+column.name, a);
+			}
+			else cfg.set(key+"."+column.name, column.toDB(a));
 		}
+		if (key.isEmpty()) return;
+		ConfigurationSection row = cfg.getConfigurationSection(key);
+		log(model, row);
+		reindex(getIndex(model), model, row);
+	}
+	/**
+	 * Appends whole row to table's log in journal mode
+	 */
+	private void log(EntityModel<?> model, ConfigurationSection row) {
+		Journal journal = journals.get(model.type);
+		if (journal == null || row == null) return;
+		Map<String, Object> values = new LinkedHashMap<>();
+		for (EntityColumn column : model.columns) values.put(column.name, row.get(column.name));
 		try {
-			cfg.save(getTablePath(object.getClass()));
+			journal.put(row.getCurrentPath(), values);
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new RuntimeException(e);
 		}
 	}
-
-	@Override
-	public <T> List<T> select(Class<T> table, Where where) {
-		Table t = validTable(table);
-		FileConfiguration cfg = tables.get(table);
-		if (cfg == null) throw new RuntimeException("Unknown table: " + t.value());
-		List<T> list = new ArrayList<>();
-		parse(cfg.getConfigurationSection(parseWhere(where)), table, list);
-		if (list == null || list.isEmpty()) return null;
-		return list;
+	private void save(Class<?> table, FileConfiguration cfg) {
+		Journal journal = journals.get(table);
+		if (journal != null) {
+			if (saveInterval <= 0) compact(table, false);
+			else if (journal.size() >= compactSize) saver().execute(() -> compact(table, false));
+			return;
+		}
+		if (saveInterval <= 0) {
+			write(table, cfg);
+			return;
+		}
+		int writes = dirty.merge(table, 1, Integer::sum);
+		ScheduledExecutorService saver = saver();
+		if (writes == maxDirtyWrites) saver.execute(() -> flush(table));
 	}
+	/**
+	 * Writes the table into temporary file and moves it over the old one,
+	 * so the file is never left half-written
+	 * @return if the table was written
+	 */
+	private boolean write(Class<?> table, FileConfiguration cfg) {
+		String data;
+		synchronized (cfg) {
+			data = cfg.saveToString();
+		}
+		return write(table, data);
+	}
+	private boolean write(Class<?> table, String data) {
+		synchronized (saveLock) {
+			Path file = getTablePath(table).toPath();
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+			try {
+				Files.write(temp, data.getBytes(StandardCharsets.UTF_8));
+				try {
+					Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+				}
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Applies the update to every row under where's key in memory and saves the table once.
+	 */
 	@Override
-	public boolean hasOne(Class<?> table, Where where) {
-		return false;
+	public int execute(Update update) {
+		FileConfiguration cfg = getTable(update.model);
+		KeyIndex index = getIndex(update.model);
+		int changed = 0;
+		RuntimeException error = null;
+		synchronized (cfg) {
+			String key = parseWhere(update.where);
+			changing(update.model, cfg, key);
+			List<ConfigurationSection> rows = new ArrayList<>();
+			leaves(cfg.getConfigurationSection(key), rows);
+			rows: for (ConfigurationSection row : rows) {
+				for (Update.Condition condition : update.conditions) {
+					Object expected = update.model.byName.get(condition.column).toDB(condition.expected);
+					if (!Update.matches(row.get(condition.column), expected)) continue rows;
+				}
+				for (Update.Action action : update.actions) {
+					if (action.kind == Update.Kind.INCREMENT) {
+						row.set(action.column, Update.add(row.get(action.column), (Number) action.value));
+						continue;
+					}
+					Object value = action.value;
+					if (!(value instanceof List<?>)) value = update.model.byName.get(action.column).toDB(value);
+					row.set(action.column, value);
+				}
+				log(update.model, row);
+				changed++;
+				try {
+					reindex(index, update.model, row);
+				} catch (RuntimeException e) {
+					if (error == null) error = e;
+					else error.addSuppressed(e);
+				}
+			}
+		}
+		if (changed > 0) save(update.model.type, cfg);
+		if (error != null) throw error;
+		return changed;
 	}
-	private <T> void parse(ConfigurationSection section, Class<T> clazz, List<T> addTo) {
+	private static void leaves(ConfigurationSection section, List<ConfigurationSection> addTo) {
 		if (section==null) return;
 		boolean b = false;
 		for (String key : section.getKeys(false)) {
 			if (!section.isConfigurationSection(key)) continue;
 			b = true;
-			parse(section.getConfigurationSection(key), clazz, addTo);
+			leaves(section.getConfigurationSection(key), addTo);
 		}
-		try {
-			if (!b) addTo.add(generateFromSection(clazz, section));
-		} catch (IllegalArgumentException e) {
-			e.printStackTrace();
-		} catch (Throwable t) {}
+		if (!b && !(section instanceof FileConfiguration)) addTo.add(section);
+	}
+
+	/**
+	 * Answered from the key index, rows under a partial key are found by prefix.
+	 * Returns copies, changing them doesn't change the table until they are written.
+	 */
+	@Override
+	public <T> List<T> select(Class<T> table, Where where) {
+		EntityModel<T> model = EntityModel.of(table);
+		List<T> list = new ArrayList<>();
+		for (Object row : getIndex(model).find(parseWhere(where), where.limit)) {
+			list.add(model.copy(row));
+		}
+		if (list.isEmpty()) return null;
+		return list;
+	}
+	@Override
+	public boolean hasOne(Class<?> table, Where where) {
+		return getIndex(EntityModel.of(table)).contains(parseWhere(where));
 	}
 
 	static <T> T generateFromSection(Class<T> clazz, ConfigurationSection section) {
+		return generateFromSection(EntityModel.of(clazz), section);
+	}
+	static <T> T generateFromSection(EntityModel<T> model, ConfigurationSection section) {
 		if (section==null) return null;
 		try {
-			Constructor<T> constr = clazz.getConstructor();
-			constr.setAccessible(true);
-			T object = constr.newInstance();
-			for (Field field : clazz.getDeclaredFields()) {
-				Column column = field.getAnnotation(Column.class);
-				if (column==null) continue;
-				field.setAccessible(true);
-				Object obj = section.get(column.value());
+			T object = model.newInstance();
+			for (EntityColumn column : model.columns) {
+				Object obj = section.get(column.name);
 				if (!(obj instanceof List<?>)) {
-					obj = convertFromDB(field.getType(), obj);
+					obj = column.fromDB(obj);
 				}
-				field.set(object, obj);
+				column.set(object, obj);
 			}
 			return object;
 		} catch (IllegalArgumentException e) {
@@ -0,0 +1,30 @@
+package com.klapeks.sql;
+
+import java.util.List;
+
+/**
+ * One page of {@link PageRequest}, with cursor of the next one
+ */
+public class Page<T> {
+
+	private final List<T> items;
+	private final String nextCursor;
+
+	Page(List<T> items, String nextCursor) {
+		this.items = items;
+		this.nextCursor = nextCursor;
+	}
+
+	public List<T> getItems() {
+		return items;
+	}
+	/**
+	 * @return cursor to pass to {@link PageRequest#after(String)}, or null if this is the last page
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+	public boolean hasNext() {
+		return nextCursor != null;
+	}
+}
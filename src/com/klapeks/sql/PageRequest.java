@@ -0,0 +1,184 @@
+package com.klapeks.sql;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keyset (seek) pagination: every page continues right after the last row of the previous one,
+ * so it costs the same no matter how deep it is, unlike OFFSET.
+ * <pre>
+ * Page&lt;PlayerData&gt; page = db.page(PlayerData.class)
+ *     .orderByDescending("coins")
+ *     .size(10)
+ *     .after(cursor)
+ *     .fetch();
+ * </pre>
+ * Rows are always ordered by primary key last, so the order is total and no row is skipped or repeated.
+ * Ordered columns should be NOT NULL, SQL doesn't compare nulls.
+ */
+public class PageRequest<T> {
+
+	static class Order {
+		final EntityColumn column;
+		final boolean descending;
+		Order(EntityColumn column, boolean descending) {
+			this.column = column;
+			this.descending = descending;
+		}
+	}
+
+	final Database database;
+	final EntityModel<T> model;
+	private final List<Order> orders = new ArrayList<>();
+	private List<Order> ordering;
+	Where where;
+	int size = 50;
+	String cursor;
+
+	PageRequest(Database database, Class<T> table) {
+		this.database = database;
+		this.model = EntityModel.of(table);
+		if (model.primaryKeys.isEmpty()) throw new RuntimeException("Table " + model.getTableName() + " has no primary key");
+	}
+
+	private EntityColumn column(String column) {
+		EntityColumn c = model.byName.get(column);
+		if (c == null) throw new RuntimeException("Unknown column " + column + " in " + model.type);
+		return c;
+	}
+
+	public PageRequest<T> orderBy(String column) {
+		orders.add(new Order(column(column), false));
+		ordering = null;
+		return this;
+	}
+	public PageRequest<T> orderByDescending(String column) {
+		orders.add(new Order(column(column), true));
+		ordering = null;
+		return this;
+	}
+	/**
+	 * Only rows matching where are paged, all rows if not set
+	 */
+	public PageRequest<T> where(Where where) {
+		this.where = where;
+		return this;
+	}
+	public PageRequest<T> size(int size) {
+		if (size <= 0) throw new IllegalArgumentException("Page size must be positive");
+		this.size = size;
+		return this;
+	}
+	/**
+	 * @param cursor - {@link Page#getNextCursor()} of previous page, null for the first page
+	 */
+	public PageRequest<T> after(String cursor) {
+		this.cursor = cursor;
+		return this;
+	}
+
+	public Page<T> fetch() {
+		return database.fetch(this);
+	}
+	public CompletableFuture<Page<T>> fetchAsync() {
+		return database.async(this::fetch);
+	}
+
+	/**
+	 * Requested order with primary key columns that are not in it added at the end
+	 */
+	List<Order> ordering() {
+		List<Order> ordering = this.ordering;
+		if (ordering != null) return ordering;
+		ordering = new ArrayList<>(orders);
+		for (EntityColumn key : model.primaryKeys) {
+			boolean found = false;
+			for (Order order : orders) {
+				if (order.column == key) found = true;
+			}
+			if (!found) ordering.add(new Order(key, false));
+		}
+		return this.ordering = Collections.unmodifiableList(ordering);
+	}
+	/**
+	 * Identifies table and order, so cursor of other ones isn't accepted
+	 */
+	String shape() {
+		StringBuilder shape = new StringBuilder(model.getTableName());
+		for (Order order : ordering()) {
+			shape.append(order.descending ? '-' : '+').append(order.column.name);
+		}
+		return shape.toString();
+	}
+
+	/**
+	 * @return stored values of ordered columns of the row
+	 */
+	Object[] values(Object row) {
+		List<Order> ordering = ordering();
+		Object[] values = new Object[ordering.size()];
+		for (int i = 0; i < values.length; i++) {
+			EntityColumn column = ordering.get(i).column;
+			values[i] = column.toDB(column.get(row));
+		}
+		return values;
+	}
+	/**
+	 * Compares stored values of two rows in requested order
+	 */
+	int compare(Object[] a, Object[] b) {
+		List<Order> ordering = ordering();
+		for (int i = 0; i < a.length; i++) {
+			int c = ValueCodec.compare(a[i], b[i]);
+			if (c != 0) return ordering.get(i).descending ? -c : c;
+		}
+		return 0;
+	}
+
+	String cursorOf(Object row) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(shape().hashCode());
+			for (Object value : values(row)) ValueCodec.write(out, value);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * @return stored values of ordered columns of the last row of previous page, or null for the first page
+	 */
+	Object[] cursorValues() {
+		if (cursor == null) return null;
+		int shape;
+		Object[] values = new Object[ordering().size()];
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)));
+			shape = in.readInt();
+			for (int i = 0; i < values.length; i++) values[i] = ValueCodec.read(in);
+			if (in.available() > 0) throw new IOException("Trailing bytes");
+		} catch (IOException | IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid cursor", e);
+		}
+		if (shape != shape().hashCode()) throw new IllegalArgumentException("Cursor is of other table or order");
+		return values;
+	}
+
+	/**
+	 * Builds page from rows sorted in requested order, where one extra row tells there is a next page
+	 */
+	Page<T> page(List<T> rows) {
+		if (rows.size() <= size) return new Page<>(rows, null);
+		List<T> items = new ArrayList<>(rows.subList(0, size));
+		return new Page<>(items, cursorOf(items.get(size - 1)));
+	}
+}
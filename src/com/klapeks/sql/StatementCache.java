@@ -0,0 +1,63 @@
+package com.klapeks.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of prepared statements of one connection.
+ * Not thread-safe: the owner has to make sure only one thread uses it at a time.
+ */
+public class StatementCache implements AutoCloseable {
+
+	final Connection connection;
+	private final Map<String, PreparedStatement> statements;
+	long lastUsed;
+
+	@SuppressWarnings("serial")
+	public StatementCache(Connection connection, int maxSize) {
+		this.connection = connection;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= maxSize) return false;
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement st = statements.get(sql);
+		if (st != null && !st.isClosed()) {
+			st.clearParameters();
+			return st;
+		}
+		st = connection.prepareStatement(sql);
+		statements.put(sql, st);
+		return st;
+	}
+
+	public void invalidate(String sql) {
+		closeQuietly(statements.remove(sql));
+	}
+
+	@Override
+	public void close() {
+		for (PreparedStatement st : statements.values()) closeQuietly(st);
+		statements.clear();
+	}
+
+	static void closeQuietly(AutoCloseable closeable) {
+		if (closeable == null) return;
+		try {
+			closeable.close();
+		} catch (Exception e) {}
+	}
+}
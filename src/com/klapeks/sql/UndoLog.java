@@ -0,0 +1,87 @@
+package com.klapeks.sql;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Default transactions of {@link Database}: changes are applied right away together with how to undo them,
+ * and {@link #rollback()} undoes changes of the current thread in reverse order.
+ * Changes are not isolated, other threads see them before commit.
+ * <p>
+ * Undo actions must change rows without recording them again.
+ */
+class UndoLog {
+
+	private final ThreadLocal<Deque<Runnable>> log = new ThreadLocal<>();
+	private final AtomicInteger open = new AtomicInteger();
+
+	void begin() {
+		if (log.get() != null) throw new IllegalStateException("Transaction is already started");
+		log.set(new ArrayDeque<>());
+		open.incrementAndGet();
+	}
+	void commit() {
+		end();
+	}
+	void rollback() {
+		undo(end(), 0);
+	}
+	boolean isActive() {
+		return log.get() != null;
+	}
+	/**
+	 * @return if no thread is in a transaction, so recorded positions of rows can't be needed
+	 */
+	boolean isIdle() {
+		return open.get() == 0;
+	}
+
+	/**
+	 * Remembers how to undo a change, if the current thread is in a transaction
+	 */
+	void record(Runnable undo) {
+		Deque<Runnable> undos = log.get();
+		if (undos != null) undos.push(undo);
+	}
+
+	private Deque<Runnable> end() {
+		Deque<Runnable> undos = log.get();
+		if (undos == null) throw new IllegalStateException("Transaction is not started");
+		log.remove();
+		open.decrementAndGet();
+		return undos;
+	}
+	private static void undo(Deque<Runnable> undos, int keep) {
+		RuntimeException error = null;
+		while (undos.size() > keep) {
+			try {
+				undos.pop().run();
+			} catch (RuntimeException e) {
+				if (error == null) error = e;
+				else error.addSuppressed(e);
+			}
+		}
+		if (error != null) throw error;
+	}
+
+	/**
+	 * Runs action inside of the current transaction, undoing only changes of action if it throws
+	 */
+	void nested(Database database, Consumer<Database> action) {
+		Deque<Runnable> undos = log.get();
+		if (undos == null) throw new IllegalStateException("Transaction is not started");
+		int mark = undos.size();
+		try {
+			action.accept(database);
+		} catch (RuntimeException | Error e) {
+			try {
+				undo(undos, mark);
+			} catch (RuntimeException ex) {
+				e.addSuppressed(ex);
+			}
+			throw e;
+		}
+	}
+}
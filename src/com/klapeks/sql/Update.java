@@ -0,0 +1,156 @@
+package com.klapeks.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Changes columns of matching rows right in the database, without reading them first.
+ * <pre>
+ * int changed = db.modify(PlayerData.class)
+ *     .increment("coins", 100)
+ *     .expect("last_reward", lastReward)
+ *     .set("last_reward", now)
+ *     .where(db.where("`uuid` = ?", uuid))
+ *     .execute();
+ * </pre>
+ */
+public class Update {
+
+	enum Kind {
+		SET, INCREMENT, EXPRESSION
+	}
+	static class Action {
+		final String column;
+		final Kind kind;
+		final Object value;
+		final Object[] placeholders;
+		Action(String column, Kind kind, Object value, Object... placeholders) {
+			this.column = column;
+			this.kind = kind;
+			this.value = value;
+			this.placeholders = placeholders;
+		}
+	}
+	static class Condition {
+		final String column;
+		final Object expected;
+		Condition(String column, Object expected) {
+			this.column = column;
+			this.expected = expected;
+		}
+	}
+
+	final Database database;
+	final EntityModel<?> model;
+	final List<Action> actions = new ArrayList<>();
+	final List<Condition> conditions = new ArrayList<>();
+	Where where;
+
+	Update(Database database, Class<?> table) {
+		this.database = database;
+		this.model = EntityModel.of(table);
+	}
+
+	private EntityColumn column(String column) {
+		EntityColumn c = model.byName.get(column);
+		if (c == null) throw new RuntimeException("Unknown column " + column + " in " + model.type);
+		return c;
+	}
+
+	public Update set(String column, Object value) {
+		column(column);
+		actions.add(new Action(column, Kind.SET, value));
+		return this;
+	}
+	public Update increment(String column, Number delta) {
+		column(column);
+		actions.add(new Action(column, Kind.INCREMENT, delta));
+		return this;
+	}
+	/**
+	 * Sets column to SQL expression, e.g. expression("coins", "GREATEST(`coins` - ?, 0)", price).
+	 * Only supported by SQL databases, others reject it here.
+	 */
+	public Update expression(String column, String expression, Object... placeholders) {
+		column(column);
+		if (!database.supportsExpressions()) {
+			throw new IllegalArgumentException(database.getClass().getSimpleName() + " can't run SQL expressions, use set or increment");
+		}
+		actions.add(new Action(column, Kind.EXPRESSION, expression, placeholders));
+		return this;
+	}
+	/**
+	 * Changes only rows where column still has the expected value (compare-and-set)
+	 */
+	public Update expect(String column, Object expected) {
+		column(column);
+		conditions.add(new Condition(column, expected));
+		return this;
+	}
+	public Update where(Where where) {
+		this.where = where;
+		return this;
+	}
+
+	public Class<?> getTable() {
+		return model.type;
+	}
+	public Where getWhere() {
+		return where;
+	}
+
+	/**
+	 * @return how many rows were changed
+	 */
+	public int execute() {
+		if (actions.isEmpty()) throw new IllegalStateException("Nothing to update");
+		if (where == null) throw new IllegalStateException("Update without where");
+		return database.execute(this);
+	}
+	public CompletableFuture<Integer> executeAsync() {
+		return database.async(this::execute);
+	}
+
+	/**
+	 * Changes the row object if it meets the conditions, for databases that change rows themselves
+	 * @return if the row was changed
+	 */
+	boolean applyTo(Object row) {
+		for (Condition condition : conditions) {
+			EntityColumn column = model.byName.get(condition.column);
+			if (!matches(column.toDB(column.get(row)), column.toDB(condition.expected))) return false;
+		}
+		for (Action action : actions) {
+			EntityColumn column = model.byName.get(action.column);
+			if (action.kind == Kind.INCREMENT) {
+				column.set(row, column.fromStored(add(column.toDB(column.get(row)), (Number) action.value)));
+			}
+			else column.set(row, column.fromStored(column.toDB(action.value)));
+		}
+		return true;
+	}
+
+	static Number add(Object current, Number delta) {
+		Number number = current instanceof Number ? (Number) current : 0;
+		if (number instanceof Double || number instanceof Float || delta instanceof Double || delta instanceof Float) {
+			return number.doubleValue() + delta.doubleValue();
+		}
+		long sum = number.longValue() + delta.longValue();
+		if (number instanceof Long || delta instanceof Long || sum != (int) sum) return sum;
+		return (int) sum;
+	}
+	/**
+	 * Compares value as it is stored to expected one, numbers of different types are compared by value
+	 */
+	static boolean matches(Object stored, Object expected) {
+		if (stored instanceof Number && expected instanceof Number) {
+			return ((Number) stored).doubleValue() == ((Number) expected).doubleValue();
+		}
+		if (stored != null && expected != null && stored.getClass() != expected.getClass()) {
+			return stored.toString().equals(expected.toString());
+		}
+		return Objects.equals(stored, expected);
+	}
+}
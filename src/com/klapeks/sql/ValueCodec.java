@@ -0,0 +1,153 @@
+package com.klapeks.sql;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes column values as they are stored in database ({@link EntityColumn#toDB(Object)}) in compact tagged binary form.
+ * Values of unknown types are written as their toString().
+ */
+class ValueCodec {
+
+	static final byte NULL = 0, STRING = 1, INT = 2, LONG = 3, DOUBLE = 4, FLOAT = 5, BOOLEAN = 6,
+			SHORT = 7, BYTE = 8, TIMESTAMP = 9, DATE = 10, DECIMAL = 11, BYTES = 12, LIST = 13;
+
+	static void write(DataOutput out, Object value) throws IOException {
+		if (value == null) out.writeByte(NULL);
+		else if (value instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		}
+		else if (value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		}
+		else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		}
+		else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		}
+		else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		}
+		else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		}
+		else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		}
+		else if (value instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		}
+		else if (value instanceof Timestamp) {
+			out.writeByte(TIMESTAMP);
+			out.writeLong(((Timestamp) value).getTime());
+			out.writeInt(((Timestamp) value).getNanos());
+		}
+		else if (value instanceof Date) {
+			out.writeByte(DATE);
+			out.writeLong(((Date) value).getTime());
+		}
+		else if (value instanceof BigDecimal) {
+			out.writeByte(DECIMAL);
+			writeString(out, value.toString());
+		}
+		else if (value instanceof byte[]) {
+			out.writeByte(BYTES);
+			out.writeInt(((byte[]) value).length);
+			out.write((byte[]) value);
+		}
+		else if (value instanceof List<?>) {
+			out.writeByte(LIST);
+			out.writeInt(((List<?>) value).size());
+			for (Object element : (List<?>) value) write(out, element);
+		}
+		else {
+			out.writeByte(STRING);
+			writeString(out, value.toString());
+		}
+	}
+
+	static Object read(DataInput in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL: return null;
+		case STRING: return readString(in);
+		case INT: return in.readInt();
+		case LONG: return in.readLong();
+		case DOUBLE: return in.readDouble();
+		case FLOAT: return in.readFloat();
+		case BOOLEAN: return in.readBoolean();
+		case SHORT: return in.readShort();
+		case BYTE: return in.readByte();
+		case TIMESTAMP:
+			Timestamp timestamp = new Timestamp(in.readLong());
+			timestamp.setNanos(in.readInt());
+			return timestamp;
+		case DATE: return new Date(in.readLong());
+		case DECIMAL: return new BigDecimal(readString(in));
+		case BYTES:
+			int length = in.readInt();
+			if (length < 0) throw new IOException("Negative length");
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return bytes;
+		case LIST:
+			int size = in.readInt();
+			if (size < 0) throw new IOException("Negative length");
+			List<Object> list = new ArrayList<>(Math.min(size, 1024));
+			for (int i = 0; i < size; i++) list.add(read(in));
+			return list;
+		default: throw new IOException("Unknown value tag " + tag);
+		}
+	}
+
+	/**
+	 * Unlike {@link DataOutput#writeUTF(String)} isn't limited to 64KB
+	 */
+	static void writeString(DataOutput out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) throw new IOException("Negative length");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Orders stored values: nulls first, numbers by value, other comparable values of the same class naturally
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compare(Object a, Object b) {
+		if (a == b) return 0;
+		if (a == null) return -1;
+		if (b == null) return 1;
+		if (a instanceof Number && b instanceof Number) {
+			if (isIntegral(a) && isIntegral(b)) return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+			return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		}
+		if (a instanceof Comparable && a.getClass() == b.getClass()) return ((Comparable) a).compareTo(b);
+		return a.toString().compareTo(b.toString());
+	}
+	private static boolean isIntegral(Object number) {
+		return number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte;
+	}
+}
@@ -0,0 +1,487 @@
+package com.klapeks.sql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keeps writes in memory and sends them to the wrapped database in batches.
+ * Writes of the same row (same table and {@link Where}) are coalesced, only the latest object is written.
+ * <p>
+ * The object itself is kept, not a copy, so the state it has at flush time is what gets saved.
+ * Pending writes of a table are flushed before it is read.
+ * <p>
+ * While the wrapped database has a transaction open on the current thread, writes of this thread go straight into it
+ * and nothing is flushed by this thread, so rows queued by other threads don't become part of the transaction.
+ * Pending writes of rows written by a committed transaction are dropped, as they are older.
+ */
+public class WriteBehindDatabase extends DatabaseWrapper {
+
+	enum Kind {
+		INSERT, UPDATE, UPSERT;
+
+		Kind merge(Kind next) {
+			if (this == next) return this;
+			if (this == INSERT && next == UPDATE) return INSERT;
+			return UPSERT;
+		}
+	}
+	static class Pending {
+		final EntityModel<?> model;
+		final Where where;
+		final boolean primary;
+		Object object;
+		Kind kind;
+		/** Failed writes of this row, not counting lost connections */
+		int failures;
+		Pending(EntityModel<?> model, Where where, Object object, Kind kind) {
+			this.model = model;
+			this.where = where;
+			this.primary = where.query.equals(model.primaryQuery);
+			this.object = object;
+			this.kind = kind;
+		}
+	}
+
+	private final Map<List<Object>, Pending> pending = new LinkedHashMap<>();
+	private final List<Pending> failed = new ArrayList<>();
+	/** Keys of rows written by the transaction of this thread */
+	private final ThreadLocal<Set<List<Object>>> written = new ThreadLocal<>();
+	private final Object flushLock = new Object();
+	private final long flushInterval;
+	private final int maxPending;
+	private int maxFailures = 3;
+	private ScheduledExecutorService flusher;
+
+	/**
+	 * @param flushInterval - milliseconds between flushes
+	 * @param maxPending - flush right away when this many rows are waiting
+	 */
+	public WriteBehindDatabase(Database database, long flushInterval, int maxPending) {
+		super(database);
+		this.flushInterval = flushInterval;
+		this.maxPending = maxPending;
+		startFlusher();
+	}
+
+	private synchronized void startFlusher() {
+		if (flusher != null) return;
+		flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "KlapeksSQL write-behind");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+	private synchronized void stopFlusher() {
+		if (flusher == null) return;
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flusher = null;
+	}
+
+	@Override
+	public void connect(String path, Properties properties) {
+		super.connect(path, properties);
+		startFlusher();
+	}
+	@Override
+	public void disconnect() {
+		stopFlusher();
+		try {
+			flush();
+		} finally {
+			super.disconnect();
+		}
+	}
+
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * How many times a row may fail to write before it is moved to {@link #getFailedWrites()}, default is 3.
+	 * Lost connections are not counted.
+	 */
+	public void setMaxFailures(int maxFailures) {
+		if (maxFailures <= 0) throw new IllegalArgumentException("Max failures must be positive");
+		this.maxFailures = maxFailures;
+	}
+	/**
+	 * @return objects that failed to write maxFailures times and are not retried anymore
+	 */
+	public List<Object> getFailedWrites() {
+		synchronized (pending) {
+			List<Object> objects = new ArrayList<>(failed.size());
+			for (Pending p : failed) objects.add(p.object);
+			return objects;
+		}
+	}
+	/**
+	 * Queues failed writes again, unless newer state of the row is queued
+	 */
+	public void retryFailedWrites() {
+		synchronized (pending) {
+			for (Pending p : failed) {
+				p.failures = 0;
+				pending.putIfAbsent(key(p.model, p.where), p);
+			}
+			failed.clear();
+		}
+	}
+	public void clearFailedWrites() {
+		synchronized (pending) {
+			failed.clear();
+		}
+	}
+
+	static List<Object> key(EntityModel<?> model, Where where) {
+		List<Object> key = new ArrayList<>(where.placeholders.length + 2);
+		key.add(model.type);
+		key.add(where.query);
+		key.addAll(Arrays.asList(where.placeholders));
+		return key;
+	}
+
+	private void enqueue(Object object, Where where, Kind kind) {
+		EntityModel<?> model = model(object);
+		List<Object> key = key(model, where);
+		if (database.isInTransaction()) {
+			writtenInTransaction(key);
+			if (kind == Kind.UPDATE) database.update(object, where);
+			else if (kind == Kind.UPSERT) database.updateOrInsert(object, where);
+			else database.insert(object);
+			return;
+		}
+		int size;
+		synchronized (pending) {
+			Pending p = pending.get(key);
+			if (p == null) pending.put(key, new Pending(model, where, object, kind));
+			else {
+				p.object = object;
+				p.kind = p.kind.merge(kind);
+			}
+			size = pending.size();
+		}
+		if (size < maxPending) return;
+		ScheduledExecutorService flusher = this.flusher;
+		if (flusher != null) flusher.execute(this::flushQuietly);
+		else flush();
+	}
+
+	/**
+	 * Pending write of the same row is dropped, deleting by other {@link Where} flushes the table first.
+	 * Waits for a flush in progress, so it can't write the row back after the delete.
+	 */
+	private void deleting(Class<?> table, Where where) {
+		EntityModel<?> model = EntityModel.of(table);
+		if (database.isInTransaction()) {
+			if (where.query.equals(model.primaryQuery)) writtenInTransaction(key(model, where));
+			return;
+		}
+		if (!where.query.equals(model.primaryQuery)) {
+			flush(table);
+			return;
+		}
+		boolean other = false;
+		synchronized (flushLock) {
+			synchronized (pending) {
+				pending.remove(key(model, where));
+				for (Pending p : pending.values()) {
+					if (p.model == model && !p.primary) other = true;
+				}
+			}
+		}
+		if (other) flush(table);
+	}
+	@Override
+	public void delete(Object object) {
+		if (object==null) return;
+		delete(object.getClass(), generateWhere(object));
+	}
+	@Override
+	public int delete(Class<?> table, Where where) {
+		deleting(table, where);
+		return super.delete(table, where);
+	}
+	@Override
+	public int delete(Class<?> table, Where where, int chunkSize) {
+		deleting(table, where);
+		return super.delete(table, where, chunkSize);
+	}
+	@Override
+	public void deleteAll(Collection<?> objects) {
+		for (Object object : objects) deleting(object.getClass(), generateWhere(object));
+		super.deleteAll(objects);
+	}
+
+	@Override
+	public int execute(Update update) {
+		flush(update.model.type);
+		return super.execute(update);
+	}
+
+	/**
+	 * Pending writes are flushed first, and writes of action go straight into the transaction
+	 */
+	@Override
+	public void inTransaction(Consumer<Database> action) {
+		boolean outer = !database.isInTransaction();
+		if (outer) flush();
+		try {
+			database.inTransaction(db -> action.accept(this));
+		} catch (RuntimeException | Error e) {
+			if (outer) ended(false);
+			throw e;
+		}
+		if (outer) ended(true);
+	}
+	@Override
+	public void begin() {
+		flush();
+		super.begin();
+	}
+	@Override
+	public void commit() {
+		boolean committed = false;
+		try {
+			super.commit();
+			committed = true;
+		} finally {
+			ended(committed);
+		}
+	}
+	@Override
+	public void rollback() {
+		try {
+			super.rollback();
+		} finally {
+			ended(false);
+		}
+	}
+	private void writtenInTransaction(List<Object> key) {
+		Set<List<Object>> keys = written.get();
+		if (keys == null) written.set(keys = new HashSet<>());
+		keys.add(key);
+	}
+	private void ended(boolean committed) {
+		Set<List<Object>> keys = written.get();
+		written.remove();
+		if (!committed || keys == null) return;
+		synchronized (flushLock) {
+			synchronized (pending) {
+				pending.keySet().removeAll(keys);
+			}
+		}
+	}
+
+	@Override
+	public void insert(Object object) {
+		enqueue(object, generateWhere(object), Kind.INSERT);
+	}
+	@Override
+	public void update(Object object, Where where) {
+		enqueue(object, where, Kind.UPDATE);
+	}
+	@Override
+	public void update(Object object) {
+		update(object, generateWhere(object));
+	}
+	@Override
+	public void updateOrInsert(Object object, Where where) {
+		enqueue(object, where, Kind.UPSERT);
+	}
+	@Override
+	public void updateOrInsert(Object object) {
+		if (object==null) return;
+		updateOrInsert(object, generateWhere(object));
+	}
+	@Override
+	public void insertAll(Collection<?> objects) {
+		for (Object object : objects) insert(object);
+	}
+	@Override
+	public void updateAll(Collection<?> objects) {
+		for (Object object : objects) update(object);
+	}
+	@Override
+	public void updateOrInsertAll(Collection<?> objects) {
+		for (Object object : objects) updateOrInsert(object);
+	}
+
+	@Override
+	public <T> List<T> select(Class<T> table, Where where) {
+		flush(table);
+		return super.select(table, where);
+	}
+	@Override
+	public <T> List<T> select(Class<T> table, Where where, String... columns) {
+		flush(table);
+		return super.select(table, where, columns);
+	}
+	@Override
+	public <T> T selectOne(Class<T> table, Where where) {
+		flush(table);
+		return super.selectOne(table, where);
+	}
+	@Override
+	public <T> Map<Object, T> selectByKeys(Class<T> table, Collection<?> keys) {
+		flush(table);
+		return super.selectByKeys(table, keys);
+	}
+	@Override
+	public long count(Class<?> table, Where where) {
+		flush(table);
+		return database.count(table, where);
+	}
+	@Override
+	public Number sum(Class<?> table, String column, Where where) {
+		flush(table);
+		return database.sum(table, column, where);
+	}
+	@Override
+	public <V> V min(Class<?> table, String column, Where where) {
+		flush(table);
+		return database.min(table, column, where);
+	}
+	@Override
+	public <V> V max(Class<?> table, String column, Where where) {
+		flush(table);
+		return database.max(table, column, where);
+	}
+	@Override
+	public Map<Object, Long> countBy(Class<?> table, String column, Where where) {
+		flush(table);
+		return database.countBy(table, column, where);
+	}
+	@Override
+	public <T> Page<T> fetch(PageRequest<T> request) {
+		flush(request.model.type);
+		return super.fetch(request);
+	}
+	@Override
+	public boolean hasOne(Class<?> table, Where where) {
+		flush(table);
+		return super.hasOne(table, where);
+	}
+
+	@Override
+	public <T> void forEach(Class<T> table, Where where, Consumer<? super T> action) {
+		flush(table);
+		super.forEach(table, where, action);
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+	}
+
+	public void flush() {
+		flush(null);
+	}
+	/**
+	 * Writes pending rows of the table, or of all tables if null.
+	 * Does nothing while the current thread is in a transaction, other threads' rows must not be rolled back with it.
+	 * If the batch fails, rows are written one by one to find the failing ones.
+	 * Those are queued again unless newer state was queued meanwhile,
+	 * and after {@link #setMaxFailures(int)} failures moved to {@link #getFailedWrites()},
+	 * so one bad row doesn't fail every read of its table.
+	 * Inserts are retried as updateOrInsert, as part of the batch might already be written.
+	 */
+	public void flush(Class<?> table) {
+		if (database.isInTransaction()) return;
+		synchronized (flushLock) {
+			Map<List<Object>, Pending> batch = new LinkedHashMap<>();
+			synchronized (pending) {
+				Iterator<Map.Entry<List<Object>, Pending>> it = pending.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<List<Object>, Pending> e = it.next();
+					if (table != null && e.getValue().model.type != table) continue;
+					batch.put(e.getKey(), e.getValue());
+					it.remove();
+				}
+			}
+			if (batch.isEmpty()) return;
+			try {
+				write(batch.values());
+				return;
+			} catch (RuntimeException e) {
+				if (isConnectionError(e)) {
+					requeue(batch, false);
+					throw e;
+				}
+			}
+			RuntimeException error = null;
+			Iterator<Map.Entry<List<Object>, Pending>> it = batch.entrySet().iterator();
+			while (it.hasNext()) {
+				Pending p = it.next().getValue();
+				if (p.kind == Kind.INSERT) p.kind = Kind.UPSERT;
+				try {
+					write(Collections.singletonList(p));
+					it.remove();
+				} catch (RuntimeException e) {
+					if (error == null) error = e;
+					else error.addSuppressed(e);
+					if (isConnectionError(e)) break;
+					p.failures++;
+				}
+			}
+			if (error == null) return;
+			requeue(batch, true);
+			throw error;
+		}
+	}
+	private void requeue(Map<List<Object>, Pending> batch, boolean counted) {
+		synchronized (pending) {
+			batch.forEach((key, p) -> {
+				if (p.kind == Kind.INSERT) p.kind = Kind.UPSERT;
+				if (counted && p.failures >= maxFailures) {
+					if (!pending.containsKey(key)) failed.add(p);
+				}
+				else pending.putIfAbsent(key, p);
+			});
+		}
+	}
+	static boolean isConnectionError(RuntimeException e) {
+		return e.getCause() instanceof SQLException && MatSQL.isConnectionError((SQLException) e.getCause());
+	}
+
+	private void write(Collection<Pending> batch) {
+		Map<Kind, List<Object>> primary = new LinkedHashMap<>();
+		for (Kind kind : Kind.values()) primary.put(kind, new ArrayList<>());
+		for (Pending p : batch) {
+			if (p.primary) {
+				primary.get(p.kind).add(p.object);
+				continue;
+			}
+			if (p.kind == Kind.UPDATE) database.update(p.object, p.where);
+			else if (p.kind == Kind.UPSERT) database.updateOrInsert(p.object, p.where);
+			else database.insert(p.object);
+		}
+		database.insertAll(primary.get(Kind.INSERT));
+		database.updateAll(primary.get(Kind.UPDATE));
+		database.updateOrInsertAll(primary.get(Kind.UPSERT));
+	}
+}
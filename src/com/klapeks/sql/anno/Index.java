@@ -0,0 +1,22 @@
+package com.klapeks.sql.anno;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Index of the column, or composite index of {@link #columns()} when put on the table class.
+ * Prefix length of a composite index column is written after its name, e.g. "name(16)".
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.TYPE})
+@Repeatable(Indexes.class)
+public @interface Index {
+	/** Index name, by default "idx_" and column names. Indexes named "idx_..." are dropped once no longer declared */
+	String value() default "";
+	String[] columns() default {};
+	/** Prefix length for VARCHAR/TEXT column, required by MySQL for TEXT */
+	int length() default 0;
+}